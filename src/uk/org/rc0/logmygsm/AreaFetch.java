@@ -0,0 +1,295 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Pre-fetch every tile over an area and a range of zoom levels, for use
+// offline later.  The area is either a box or a corridor around the trail.
+//
+// Runs in its own thread : a first pass counts the tiles not yet on disk
+// and estimates their size, then a second pass feeds them to the
+// Downloader a batch at a time, waiting for each batch to drain so the
+// download queue stays short.
+
+import android.content.Context;
+import android.os.Handler;
+import java.io.File;
+import java.util.LinkedList;
+
+class AreaFetch implements Runnable {
+
+  static final int MAX_ZOOM = 18;
+  // Refuse areas needing more tiles than this
+  static final private int MAX_TILES = 20000;
+  static final private int BATCH = 100;
+  // Used for the estimate if there are no tiles on disk to measure
+  static final private long DEFAULT_TILE_BYTES = 15000;
+  static final private int SIZE_SAMPLES = 50;
+  static final private long POLL_MS = 1000;
+
+  // Only one runs at a time; starting another cancels it
+  static private AreaFetch current = null;
+
+  private Context mContext;
+  private Handler mHandler;
+  private MapSource map_source;
+  private int zoom_min;
+  private int zoom_max;
+  private volatile boolean cancelled;
+
+  // A box [x0,x1] x [y0,y1] in Merc28 units, when corridor is null
+  private int x0, y0, x1, y1;
+  // Otherwise tiles within 'margin' tiles of a point of this
+  private Trail.PointArray corridor;
+  private int margin;
+
+  // Enumeration state
+  private int cur_zoom;
+  private int tx0, ty0, tx1, ty1;
+  private int cur_x, cur_y;
+  private LinkedList<TileStore.TilePos> zoom_tiles;
+  // Set if a zoom level of the corridor had more than MAX_TILES tiles
+  private boolean too_big;
+
+  private AreaFetch(Context context, MapSource _map_source, int _zoom_min, int _zoom_max) {
+    mContext = context;
+    mHandler = new Handler();
+    map_source = _map_source;
+    zoom_min = _zoom_min;
+    zoom_max = Math.min(_zoom_max, MAX_ZOOM);
+    cancelled = false;
+    too_big = false;
+    corridor = null;
+  }
+
+  // Everything in the Merc28 box with corners (x0,y0) and (x1,y1)
+  static AreaFetch box(Context context, MapSource map_source, int zoom_min, int zoom_max,
+      int x0, int y0, int x1, int y1) {
+    AreaFetch result = new AreaFetch(context, map_source, zoom_min, zoom_max);
+    result.x0 = Math.min(x0, x1);
+    result.y0 = Math.min(y0, y1);
+    result.x1 = Math.max(x0, x1);
+    result.y1 = Math.max(y0, y1);
+    return result;
+  }
+
+  // Every tile within 'margin' tiles of a point on the trail
+  static AreaFetch corridor(Context context, MapSource map_source, int zoom_min, int zoom_max,
+      Trail.PointArray trail, int margin) {
+    AreaFetch result = new AreaFetch(context, map_source, zoom_min, zoom_max);
+    result.corridor = trail;
+    result.margin = margin;
+    return result;
+  }
+
+  // Called on the UI thread
+  void start() {
+    if (map_source.get_download_url(zoom_min, 0, 0) == null) {
+      Logger.announce(mContext, "Cannot download this map");
+      return;
+    }
+    synchronized (AreaFetch.class) {
+      if (current != null) {
+        current.cancelled = true;
+      }
+      current = this;
+    }
+    Thread t = new Thread(this, "AreaFetch");
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  @Override
+  public void run() {
+    // First pass : count and estimate
+    int n_tiles = 0;
+    int n_missing = 0;
+    int n_sized = 0;
+    long sized_bytes = 0;
+    rewind();
+    TileStore.TilePos pos;
+    while (!cancelled && !too_big && ((pos = next()) != null)) {
+      ++n_tiles;
+      if (!map_source.reads_from_pack() && TilePresence.exists(pos)) {
+        // Only measure a sample, each one costs a stat()
+        if (n_sized < SIZE_SAMPLES) {
+          File file = new File(map_source.get_tile_path(pos.zoom, pos.x, pos.y));
+          ++n_sized;
+          sized_bytes += file.length();
+        }
+      } else if (!on_disk(pos)) {
+        ++n_missing;
+        if (n_missing > MAX_TILES) {
+          post_announce(String.format("Area too big : over %d tiles", MAX_TILES));
+          finish();
+          return;
+        }
+      }
+    }
+    if (cancelled) {
+      return;
+    }
+    if (too_big) {
+      post_announce(String.format("Area too big : over %d tiles", MAX_TILES));
+      finish();
+      return;
+    }
+    long tile_bytes = (n_sized > 0) ? (sized_bytes / n_sized) : DEFAULT_TILE_BYTES;
+    long estimate = tile_bytes * n_missing;
+    post_announce(String.format("Area : %d of %d tiles to fetch, about %.1fMB",
+          n_missing, n_tiles, (double) estimate / (1024.0 * 1024.0)));
+
+    // Second pass : feed the missing tiles to the downloader
+    LinkedList<TileStore.TilePos> batch = new LinkedList<TileStore.TilePos> ();
+    rewind();
+    while (!cancelled && ((pos = next()) != null)) {
+      if (!on_disk(pos)) {
+        batch.add(pos);
+        if (batch.size() == BATCH) {
+          feed(batch);
+          batch = new LinkedList<TileStore.TilePos> ();
+        }
+      }
+    }
+    if (!cancelled && (batch.size() > 0)) {
+      feed(batch);
+    }
+    finish();
+  }
+
+  // Internal
+
+  private boolean on_disk(TileStore.TilePos pos) {
+    if (map_source.reads_from_pack() ?
+        TilePresence.is_fresh(pos) : TilePresence.exists(pos)) {
+      return true;
+    }
+    TilePack pack = map_source.get_pack();
+    return (pack != null) && pack.contains(pos.zoom, pos.x, pos.y);
+  }
+
+  private void feed(LinkedList<TileStore.TilePos> batch) {
+    // Wait until the previous batch is mostly done
+    while (!cancelled && (Downloader.get_n_outstanding() > (BATCH >> 1))) {
+      try {
+        Thread.sleep(POLL_MS);
+      } catch (InterruptedException e) {
+        cancelled = true;
+      }
+    }
+    if (!cancelled) {
+      Downloader.enqueue(batch);
+    }
+  }
+
+  private void finish() {
+    synchronized (AreaFetch.class) {
+      if (current == this) {
+        current = null;
+      }
+    }
+  }
+
+  private void post_announce(final String text) {
+    mHandler.post(new Runnable() {
+      public void run() {
+        Logger.announce(mContext, text);
+      }
+    });
+  }
+
+  private void rewind() {
+    cur_zoom = zoom_min - 1;
+    zoom_tiles = null;
+    next_zoom();
+  }
+
+  // Set up to enumerate the tiles at the next zoom level
+  private void next_zoom() {
+    ++cur_zoom;
+    if (cur_zoom > zoom_max) {
+      return;
+    }
+    int shift = Merc28.shift - cur_zoom;
+    int limit = (1 << cur_zoom) - 1;
+    if (corridor == null) {
+      // The box can run off the edges of the map
+      tx0 = Math.max(0, x0 >> shift);
+      ty0 = Math.max(0, y0 >> shift);
+      tx1 = Math.min(limit, x1 >> shift);
+      ty1 = Math.min(limit, y1 >> shift);
+      cur_x = tx0;
+      cur_y = ty0;
+    } else {
+      // Collect the tiles near the trail, without duplicates
+      LongMap<TileStore.TilePos> seen = new LongMap<TileStore.TilePos> ();
+      zoom_tiles = new LinkedList<TileStore.TilePos> ();
+      // Give up rather than build a huge list for a long trail at a deep zoom
+      for (int i = 0; (i < corridor.n) && !too_big; i++) {
+        int tx = corridor.x[i] >> shift;
+        int ty = corridor.y[i] >> shift;
+        for (int x = Math.max(0, tx - margin); x <= Math.min(limit, tx + margin); x++) {
+          for (int y = Math.max(0, ty - margin); y <= Math.min(limit, ty + margin); y++) {
+            long key = TileStore.make_key(cur_zoom, x, y, map_source);
+            if (!seen.contains(key)) {
+              TileStore.TilePos pos = new TileStore.TilePos(cur_zoom, x, y, map_source);
+              seen.put(key, pos);
+              zoom_tiles.add(pos);
+              if (zoom_tiles.size() > MAX_TILES) {
+                too_big = true;
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // The next tile in the area, or null when there are no more
+  private TileStore.TilePos next() {
+    while (cur_zoom <= zoom_max) {
+      if (corridor == null) {
+        if ((cur_y <= ty1) && (tx0 <= tx1)) {
+          TileStore.TilePos pos = new TileStore.TilePos(cur_zoom, cur_x, cur_y, map_source);
+          ++cur_x;
+          if (cur_x > tx1) {
+            cur_x = tx0;
+            ++cur_y;
+          }
+          return pos;
+        }
+      } else {
+        if (zoom_tiles.size() > 0) {
+          return zoom_tiles.removeFirst();
+        }
+      }
+      next_zoom();
+    }
+    return null;
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -26,52 +26,131 @@
 package uk.org.rc0.logmygsm;
 
 import android.text.format.DateFormat;
+import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+// Log records are handed to a writer thread through a RecordRing, so that
+// write() never waits for the SD card.  The writer flushes once enough has
+// built up or enough time has passed, whichever is first.  Records are
+// either text lines or ready-encoded binary ones (see BinaryLog).
+//
+// Output goes to a series of segment files, each named after the time it
+// was opened.  A new one is started at a flush once the current one is big
+// or old enough, so every segment ends on a whole record and is complete in
+// itself (binary ones get their own header).  Compressed segments are gzip,
+// one member per flush (see GzipBlockStream), so a crash loses at most the
+// block being built up.  Flushes are further apart when compressing, as
+// each member is compressed on its own.
 
 class Backend {
   private File file;
-  private FileWriter writer;
+  private OutputStream writer;
   private Logger mService;
 
+  static final private String TAG = "Backend";
+  static final private File LOG_DIR = new File("/sdcard", "LogMyGsm/logs");
+
+  static final private int RING_SIZE = 1024;
+  static final private int BUFFER_BYTES = 8192;
+  // Flush when this much is waiting to be written...
+  static final private int FLUSH_BYTES = 4096;
+  // ...or when the oldest unflushed record is this old
+  static final private long FLUSH_INTERVAL_MS = 2000;
+  // The same, when compressing
+  static final private int BLOCK_BYTES = 65536;
+  static final private long BLOCK_INTERVAL_MS = 30000;
+  // Start a new segment once this much has been written to it...
+  static final private long SEGMENT_BYTES = 16L * 1024 * 1024;
+  // ...or it has been open this long
+  static final private long SEGMENT_MS = 6L * 3600 * 1000;
+  // Wake the writer early once this many records are queued
+  static final private int WAKE_RECORDS = 64;
+  // Flushes slower than this get logged
+  static final private long SLOW_FLUSH_MS = 200;
+
+  private String prefix;
+  private String suffix;
+  private byte [] header;
+  private boolean compress;
+  private int flush_bytes;
+  private long flush_interval_ms;
+
+  // Holds String or byte[] records
+  private RecordRing<Object> ring;
+  private Thread writer_thread;
+  private volatile boolean closing;
+
+  // Current segment, only used by the writer thread once it's started
+  private long segment_start;
+  private long segment_bytes;
+
+  // Statistics, written by the writer thread except n_stalls
+  private volatile int max_depth;
+  private volatile long last_flush_ms;
+  private volatile long max_flush_ms;
+  private volatile int n_flushes;
+  private volatile int n_stalls;
+  private volatile int n_segments;
+
   Backend(String prefix, Logger the_service) {
-    String basePath = "/sdcard";
-    String ourDir = "LogMyGsm/logs";
-    CharSequence cs = DateFormat.format("yyyyMMdd-kkmmss", System.currentTimeMillis());
-    String timedFileName = prefix + cs.toString() + ".log";
-    String fullPath = basePath + "/" + ourDir + "/" + timedFileName;
+    this(prefix, ".log", null, false, the_service);
+  }
+
+  // header, if not null, is written at the start of each segment.
+  // Compressed segments get ".gz" on the end of the suffix.
+  Backend(String _prefix, String _suffix, byte [] _header, boolean _compress, Logger the_service) {
+    prefix = _prefix;
+    suffix = _compress ? (_suffix + ".gz") : _suffix;
+    header = _header;
+    compress = _compress;
+    flush_bytes = compress ? BLOCK_BYTES : FLUSH_BYTES;
+    flush_interval_ms = compress ? BLOCK_INTERVAL_MS : FLUSH_INTERVAL_MS;
     mService = the_service;
 
+    long now = System.currentTimeMillis();
+    file = segment_file(now);
     try {
-      File root = new File(basePath, ourDir);
-      if (!root.exists()) {
-          root.mkdirs();
+      if (!LOG_DIR.exists()) {
+          LOG_DIR.mkdirs();
       }
-      file = new File(root, timedFileName);
-      writer = new FileWriter(file);
+      writer = open_segment(file, now);
       if (mService != null) {
         mService.announce("Opened logfile");
       }
     } catch (IOException e) {
-      file = null;
       writer = null;
     }
     if (writer == null) {
       if (mService != null) {
-        mService.announce("COULD NOT LOG TO " + fullPath);
+        mService.announce("COULD NOT LOG TO " + file.getPath());
       }
+      file = null;
+    } else {
+      ring = new RecordRing<Object>(RING_SIZE);
+      closing = false;
+      writer_thread = new Thread(new Runnable() {
+        public void run() {
+          write_loop();
+        }
+      }, "LogWriter");
+      writer_thread.start();
     }
   }
 
+  // Must only be called from one thread (the service's main thread)
   void write(String data) {
-    if (writer != null) {
-      try {
-        writer.append(data);
-      } catch (IOException e) {
-      }
-    }
+    enqueue(data);
+  }
+
+  // As write(String), for a binary record.  The array must not be reused.
+  void write(byte [] data) {
+    enqueue(data);
   }
 
   void close() {
@@ -79,15 +158,163 @@ class Backend {
       if (mService != null) {
         mService.announce("Closing logfile");
       }
+      closing = true;
+      LockSupport.unpark(writer_thread);
+      try {
+        writer_thread.join();
+      } catch (InterruptedException e) {
+      }
       try {
-        writer.flush();
         writer.close();
       } catch (IOException e) {
       }
+      Log.i(TAG, "Closed " + file.getName() + " : " + get_stats());
     }
     writer = null;
   }
 
+  // Records waiting for the writer thread
+  int get_queue_depth() {
+    return (ring != null) ? ring.size() : 0;
+  }
+
+  // Time the last flush to the SD card took
+  long get_last_flush_ms() {
+    return last_flush_ms;
+  }
+
+  String get_stats() {
+    return "depth " + get_queue_depth() + " (max " + max_depth + "), " +
+      n_flushes + " flushes, last " + last_flush_ms + "ms, max " + max_flush_ms + "ms, " +
+      n_stalls + " stalls, " + n_segments + " segments";
+  }
+
+  // Internal
+
+  private void enqueue(Object data) {
+    if (writer == null) {
+      return;
+    }
+    if (!ring.offer(data)) {
+      // The writer has fallen a whole ring behind : wait for it rather than
+      // lose the record
+      ++n_stalls;
+      LockSupport.unpark(writer_thread);
+      while (!ring.offer(data)) {
+        LockSupport.parkNanos(1000000L);
+      }
+    }
+    if (ring.size() >= WAKE_RECORDS) {
+      LockSupport.unpark(writer_thread);
+    }
+  }
+
+  private void write_loop() {
+    int n_unflushed = 0;
+    long oldest = 0;
+    while (true) {
+      boolean was_closing = closing;
+      int depth = ring.size();
+      if (depth > max_depth) {
+        max_depth = depth;
+      }
+      Object record;
+      while ((record = ring.poll()) != null) {
+        if (n_unflushed == 0) {
+          oldest = System.currentTimeMillis();
+        }
+        // Text records are encoded here rather than on the caller's thread
+        byte [] data = (record instanceof byte []) ?
+          (byte []) record : ((String) record).getBytes();
+        try {
+          writer.write(data);
+        } catch (IOException e) {
+        }
+        n_unflushed += data.length;
+      }
+      long now = System.currentTimeMillis();
+      if ((n_unflushed > 0) &&
+          (was_closing || (n_unflushed >= flush_bytes) || (now - oldest >= flush_interval_ms))) {
+        flush();
+        segment_bytes += n_unflushed;
+        n_unflushed = 0;
+        if (!was_closing &&
+            ((segment_bytes >= SEGMENT_BYTES) || (now - segment_start >= SEGMENT_MS))) {
+          rotate(now);
+        }
+      }
+      if (was_closing) {
+        // Everything offered before close() has now been written
+        return;
+      }
+      long wait_ms = (n_unflushed > 0) ? Math.max(1, flush_interval_ms - (now - oldest)) : flush_interval_ms;
+      LockSupport.parkNanos(wait_ms * 1000000L);
+    }
+  }
+
+  private File segment_file(long now) {
+    CharSequence cs = DateFormat.format("yyyyMMdd-kkmmss", now);
+    return new File(LOG_DIR, prefix + cs.toString() + suffix);
+  }
+
+  private OutputStream open_segment(File f, long now) throws IOException {
+    OutputStream s = new BufferedOutputStream(new FileOutputStream(f), BUFFER_BYTES);
+    if (compress) {
+      s = new GzipBlockStream(s);
+    }
+    segment_start = now;
+    segment_bytes = 0;
+    if (header != null) {
+      s.write(header);
+      segment_bytes = header.length;
+    }
+    ++n_segments;
+    return s;
+  }
+
+  // Called straight after a flush, so the old segment ends on a whole record
+  private void rotate(long now) {
+    File next = segment_file(now);
+    OutputStream s = null;
+    if (!next.exists()) {
+      try {
+        s = open_segment(next, now);
+      } catch (IOException e) {
+        Log.w(TAG, "Could not open " + next.getName() + " : " + e);
+      }
+    }
+    if (s == null) {
+      // Keep going with the old segment; try again after another interval
+      segment_start = now;
+      segment_bytes = 0;
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+    }
+    Log.i(TAG, "Closed " + file.getName() + ", continuing in " + next.getName());
+    writer = s;
+    file = next;
+  }
+
+  private void flush() {
+    long start = System.currentTimeMillis();
+    try {
+      writer.flush();
+    } catch (IOException e) {
+    }
+    long took = System.currentTimeMillis() - start;
+    last_flush_ms = took;
+    if (took > max_flush_ms) {
+      max_flush_ms = took;
+    }
+    ++n_flushes;
+    if (took > SLOW_FLUSH_MS) {
+      Log.i(TAG, "Slow log flush : " + took + "ms");
+    }
+  }
+
 }
 
 // vim:et:sw=2:sts=2
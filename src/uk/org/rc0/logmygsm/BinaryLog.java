@@ -0,0 +1,254 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Compact alternative to the text log : one fixed-width record per fix or
+// marker, written through Backend like the text lines.  Under half the
+// size, and nothing to parse.  The position is kept as a Merc28 cell, so
+// comes back within about 5cm, and the altitude to the 0.1m the text log
+// prints.
+//
+// Layout (big-endian) :
+//   header : magic, version, record size         3 ints
+//            time the log was started (ms)        1 long
+//   record : kind, state, network type,           4 bytes
+//            MCC/MNC digit count
+//            Merc28 X, Merc28 Y, cid, lac, time,  7 ints
+//            altitude (dm), MCC/MNC value
+//            accuracy, dBm                        2 shorts
+// A marker record only has its number, in place of the cid.  Readers skip
+// anything past the fields they know about in a record, so later versions
+// can add fields at the end.
+//
+// Convert a log back to the text format on a desktop machine with
+//   java uk.org.rc0.logmygsm.BinaryLog <binary log> [<text log>]
+// which also takes the gzipped segments Backend writes when compressing.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+class BinaryLog {
+
+  static final String SUFFIX = ".lmb";
+
+  static final private int MAGIC = 0x4c4d4742; // "LMGB"
+  static final private int VERSION = 1;
+  static final int HEADER_BYTES = 20;
+  static final int RECORD_BYTES = 36;
+
+  static final byte KIND_FIX = 0;
+  static final byte KIND_MARKER = 1;
+
+  // MCC/MNC digit counts that aren't counts
+  static final private int MCC_NULL = 0xfe;
+  static final private int MCC_OTHER = 0xff;
+  static final private int MCC_MAX_DIGITS = 9;
+
+  static byte [] header(long start_time) {
+    ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+    b.putInt(MAGIC);
+    b.putInt(VERSION);
+    b.putInt(RECORD_BYTES);
+    b.putLong(start_time);
+    return b.array();
+  }
+
+  // The arguments are as for FixFormatter.format()
+  static byte [] fix(double lat, double lon, int acc, char state, char network_type,
+      int cid, int lac, int dBm, String mcc_mnc, double alt, int time) {
+    byte [] r = new byte[RECORD_BYTES];
+    Merc28 pos = new Merc28(lat, lon);
+    int digits;
+    int value = 0;
+    if (mcc_mnc == null) {
+      digits = MCC_NULL;
+    } else if (mcc_mnc.length() > MCC_MAX_DIGITS) {
+      digits = MCC_OTHER;
+    } else {
+      digits = mcc_mnc.length();
+      for (int i = 0; i < digits; i++) {
+        char c = mcc_mnc.charAt(i);
+        if ((c < '0') || (c > '9')) {
+          digits = MCC_OTHER;
+          value = 0;
+          break;
+        }
+        value = 10*value + (c - '0');
+      }
+    }
+    r[0] = KIND_FIX;
+    r[1] = (byte) state;
+    r[2] = (byte) network_type;
+    r[3] = (byte) digits;
+    put_int(r, 4, pos.X);
+    put_int(r, 8, pos.Y);
+    put_int(r, 12, cid);
+    put_int(r, 16, lac);
+    put_int(r, 20, time);
+    put_int(r, 24, (int) Math.round(10.0 * alt));
+    put_int(r, 28, value);
+    put_short(r, 32, acc);
+    put_short(r, 34, dBm);
+    return r;
+  }
+
+  static byte [] marker(int number) {
+    byte [] r = new byte[RECORD_BYTES];
+    r[0] = KIND_MARKER;
+    put_int(r, 12, number);
+    return r;
+  }
+
+  // Writes the text form of a whole binary log, returning the number of
+  // records.  A record cut short at the end of the file (the logger was
+  // killed mid-write) is dropped.
+  static int convert(InputStream in, Writer out) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in, 65536));
+    int record_bytes = read_header(data);
+    byte [] r = new byte[record_bytes];
+    ByteBuffer b = ByteBuffer.wrap(r);
+    FixFormatter formatter = new FixFormatter();
+    LogQuery.Fix fix = new LogQuery.Fix();
+    int n = 0;
+    while (true) {
+      try {
+        data.readFully(r);
+      } catch (EOFException e) {
+        break;
+      }
+      ++n;
+      if (r[0] == KIND_MARKER) {
+        out.write("## MARKER " + b.getInt(12) + "\n");
+      } else if (decode(b, 0, fix)) {
+        out.write(fix.format(formatter));
+      }
+      // Records of kinds added later are skipped
+    }
+    return n;
+  }
+
+  // Checks the header and returns the record size
+  static int read_header(DataInputStream data) throws IOException {
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a binary log");
+    }
+    int version = data.readInt();
+    if (version > VERSION) {
+      throw new IOException("Binary log version " + version + " is too new");
+    }
+    int record_bytes = data.readInt();
+    if (record_bytes < RECORD_BYTES) {
+      throw new IOException("Binary log records too short : " + record_bytes);
+    }
+    data.readLong();
+    return record_bytes;
+  }
+
+  // Fills in fix from the record at offset, if it is one
+  static boolean decode(ByteBuffer b, int offset, LogQuery.Fix fix) {
+    if (b.get(offset) != KIND_FIX) {
+      return false;
+    }
+    Merc28 pos = new Merc28(b.getInt(offset + 4), b.getInt(offset + 8));
+    fix.lat = pos.lat();
+    fix.lon = pos.lon();
+    fix.acc = b.getShort(offset + 32);
+    fix.state = (char) (b.get(offset + 1) & 0xff);
+    fix.network_type = (char) (b.get(offset + 2) & 0xff);
+    fix.cid = b.getInt(offset + 12);
+    fix.lac = b.getInt(offset + 16);
+    fix.dBm = b.getShort(offset + 34);
+    fix.mcc_mnc = mcc_mnc(b.get(offset + 3) & 0xff, b.getInt(offset + 28));
+    fix.alt = 0.1 * (double) b.getInt(offset + 24);
+    fix.time = b.getInt(offset + 20);
+    return true;
+  }
+
+  public static void main(String [] args) throws IOException {
+    if ((args.length < 1) || (args.length > 2)) {
+      System.err.println("Usage : BinaryLog <binary log> [<text log>]");
+      System.exit(1);
+    }
+    InputStream in = new FileInputStream(args[0]);
+    if (args[0].endsWith(".gz")) {
+      in = new GZIPInputStream(in, 65536);
+    }
+    Writer out = new BufferedWriter((args.length == 2) ?
+        new FileWriter(args[1]) : new OutputStreamWriter(System.out), 65536);
+    try {
+      convert(in, out);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  // Internal
+
+  static private void put_int(byte [] r, int offset, int value) {
+    r[offset] = (byte) (value >> 24);
+    r[offset+1] = (byte) (value >> 16);
+    r[offset+2] = (byte) (value >> 8);
+    r[offset+3] = (byte) value;
+  }
+
+  static private void put_short(byte [] r, int offset, int value) {
+    if (value > Short.MAX_VALUE) {
+      value = Short.MAX_VALUE;
+    } else if (value < Short.MIN_VALUE) {
+      value = Short.MIN_VALUE;
+    }
+    r[offset] = (byte) (value >> 8);
+    r[offset+1] = (byte) value;
+  }
+
+  static private String mcc_mnc(int digits, int value) {
+    if (digits == MCC_NULL) {
+      return null;
+    } else if (digits > MCC_MAX_DIGITS) {
+      return "?";
+    }
+    char [] c = new char[digits];
+    for (int i = digits - 1; i >= 0; i--) {
+      c[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return new String(c);
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,179 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import java.util.ArrayList;
+
+// Pool of mutable bitmaps, so that tiles being thrown out of the cache can be
+// decoded into again instead of going to the garbage collector.  Bitmaps are
+// binned by config and size, as a decode can only reuse an exact match
+// before KitKat.
+//
+// Shared between the UI thread, which releases bitmaps, and the decode
+// workers, which obtain them.
+
+class BitmapPool {
+
+  static final private String TAG = "BitmapPool";
+  static final private boolean do_log = false;
+
+  // Tiles are evicted one at a time as new ones arrive, so a few spares suffice
+  static final private int MAX_PER_KIND = 8;
+
+  static private LongMap<ArrayList<Bitmap>> bins = new LongMap<ArrayList<Bitmap>> ();
+  static private int n_reused;
+  static private int n_created;
+
+  static private long kind(int w, int h, Bitmap.Config config) {
+    return ((long) config.ordinal() << 32) | ((long) w << 16) | (long) h;
+  }
+
+  // Each decode thread keeps its own options block and scratch buffer
+  static private final ThreadLocal<BitmapFactory.Options> options = new ThreadLocal<BitmapFactory.Options> () {
+    @Override
+    protected BitmapFactory.Options initialValue() {
+      BitmapFactory.Options opts = new BitmapFactory.Options();
+      opts.inTempStorage = new byte[16*1024];
+      return opts;
+    }
+  };
+
+  // Returns null if there is nothing suitable in the pool
+  static synchronized Bitmap acquire(int w, int h, Bitmap.Config config) {
+    ArrayList<Bitmap> bin = bins.get(kind(w, h, config));
+    if ((bin == null) || (bin.size() == 0)) {
+      return null;
+    }
+    ++n_reused;
+    return bin.remove(bin.size() - 1);
+  }
+
+  static Bitmap obtain(int w, int h, Bitmap.Config config) {
+    Bitmap bm = acquire(w, h, config);
+    if (bm == null) {
+      synchronized (BitmapPool.class) {
+        ++n_created;
+      }
+      bm = Bitmap.createBitmap(w, h, config);
+    }
+    return bm;
+  }
+
+  // The caller must not use bm again after this
+  static synchronized void release(Bitmap bm) {
+    if ((bm == null) || bm.isRecycled() || !bm.isMutable()) {
+      return;
+    }
+    long k = kind(bm.getWidth(), bm.getHeight(), bm.getConfig());
+    ArrayList<Bitmap> bin = bins.get(k);
+    if (bin == null) {
+      bin = new ArrayList<Bitmap> (MAX_PER_KIND);
+      bins.put(k, bin);
+    }
+    if (bin.size() < MAX_PER_KIND) {
+      bin.add(bm);
+    }
+    // else let the GC have it
+  }
+
+  static synchronized void clear() {
+    bins.clear();
+  }
+
+  // Decode a tile image into a mutable bitmap of the given config, reusing a
+  // pooled bitmap where the platform allows it.  Returns null if the file
+  // can't be decoded.
+  static Bitmap decode_file(String filename, int w, int h, Bitmap.Config config) {
+    return decode(filename, null, 0, w, h, config);
+  }
+
+  // The same, for an image held in the first 'length' bytes of 'data'
+  static Bitmap decode_bytes(byte [] data, int length, int w, int h, Bitmap.Config config) {
+    return decode(null, data, length, w, h, config);
+  }
+
+  static synchronized String get_stats() {
+    return "reused " + n_reused + ", created " + n_created;
+  }
+
+  // Internal
+
+  static private Bitmap decode(String filename, byte [] data, int length,
+      int w, int h, Bitmap.Config config) {
+    BitmapFactory.Options opts = options.get();
+    opts.inPreferredConfig = config;
+    Bitmap bm;
+    if (Build.VERSION.SDK_INT >= 11) {
+      opts.inMutable = true;
+      opts.inBitmap = acquire(w, h, config);
+      try {
+        bm = decode_raw(filename, data, length, opts);
+      } catch (IllegalArgumentException e) {
+        // The image didn't fit the recycled bitmap (e.g. odd-sized tile)
+        if (do_log) { Log.i(TAG, "Could not reuse bitmap for " + filename); }
+        release(opts.inBitmap);
+        opts.inBitmap = null;
+        bm = decode_raw(filename, data, length, opts);
+      }
+      if ((bm == null) && (opts.inBitmap != null)) {
+        release(opts.inBitmap);
+      }
+      opts.inBitmap = null;
+      if ((bm != null) && (bm.getConfig() != config)) {
+        // e.g. a paletted PNG that the decoder wouldn't convert
+        Bitmap temp_bm = bm;
+        bm = temp_bm.copy(config, true);
+        temp_bm.recycle();
+      }
+    } else {
+      // No decoding into existing bitmaps : decode then take a mutable copy,
+      // and free the intermediate at once rather than waiting for the GC.
+      Bitmap temp_bm = decode_raw(filename, data, length, opts);
+      if (temp_bm == null) {
+        return null;
+      }
+      bm = temp_bm.copy(config, true);
+      temp_bm.recycle();
+    }
+    return bm;
+  }
+
+  static private Bitmap decode_raw(String filename, byte [] data, int length,
+      BitmapFactory.Options opts) {
+    if (filename != null) {
+      return BitmapFactory.decodeFile(filename, opts);
+    } else {
+      return BitmapFactory.decodeByteArray(data, 0, length, opts);
+    }
+  }
+
+}
+
+// vim:et:sw=2:sts=2
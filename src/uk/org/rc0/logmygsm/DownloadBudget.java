@@ -0,0 +1,76 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Limits on how hard the downloader may hit one map source's servers : at
+// most 'max_concurrent' requests in flight, started at no more than
+// 'rate' per second on average, with bursts of up to 'burst'.
+
+import java.util.concurrent.Semaphore;
+
+class DownloadBudget {
+
+  private Semaphore slots;
+  private double rate;
+  private double burst;
+  // Requests that may start now; negative when callers are already waiting
+  private double tokens;
+  private long last_ns;
+
+  DownloadBudget(int max_concurrent, double _rate, int _burst) {
+    slots = new Semaphore(max_concurrent, true);
+    rate = _rate;
+    burst = (double) _burst;
+    tokens = burst;
+    last_ns = System.nanoTime();
+  }
+
+  // Block until a request may start.  Must be paired with release().
+  void acquire() {
+    slots.acquireUninterruptibly();
+    long wait_ns;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (double)(now - last_ns) * rate * 1.0e-9);
+      last_ns = now;
+      tokens -= 1.0;
+      wait_ns = (tokens < 0.0) ? (long) (-tokens * 1.0e9 / rate) : 0;
+    }
+    if (wait_ns > 0) {
+      try {
+        Thread.sleep(wait_ns / 1000000, (int) (wait_ns % 1000000));
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  void release() {
+    slots.release();
+  }
+
+}
+
+// vim:et:sw=2:sts=2
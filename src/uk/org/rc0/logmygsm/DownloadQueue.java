@@ -0,0 +1,257 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// The tiles waiting to be downloaded, kept on disk so that a long download
+// carries on after the process is killed.
+//
+// The file is a journal of 9 byte records : '+' or '-' followed by the tile
+// key (see TileStore.make_key()), for a tile being queued and finished.  It
+// is rewritten with just the outstanding tiles when loaded, and emptied
+// whenever the queue drains.
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+class DownloadQueue {
+
+  static final private byte OP_ADD = '+';
+  static final private byte OP_DONE = '-';
+
+  static final private String TAG = "DownloadQueue";
+
+  private File file;
+  private DataOutputStream out;
+  // Every tile queued and not yet finished, including those being fetched
+  private LongMap<TileStore.TilePos> queued;
+  // Those not yet handed out, oldest first
+  private LinkedList<TileStore.TilePos> waiting;
+  private int n_done;
+
+  DownloadQueue(File _file) {
+    file = _file;
+    out = null;
+    queued = new LongMap<TileStore.TilePos> ();
+    waiting = new LinkedList<TileStore.TilePos> ();
+    n_done = 0;
+  }
+
+  // Replay the journal, then rewrite it holding just the outstanding tiles.
+  // Returns how many there are.
+  synchronized int load() {
+    LinkedList<Long> order = new LinkedList<Long> ();
+    LongMap<TileStore.TilePos> live = new LongMap<TileStore.TilePos> ();
+    if (file.exists()) {
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        while (true) {
+          byte op = in.readByte();
+          long key = in.readLong();
+          if (op == OP_ADD) {
+            TileStore.TilePos pos = TileStore.decode_key(key);
+            if ((pos != null) && !live.contains(key)) {
+              live.put(key, pos);
+              order.add(key);
+            }
+          } else if (op == OP_DONE) {
+            live.remove(key);
+          }
+        }
+      } catch (EOFException e) {
+        // Normal end, or a record torn by a crash
+      } catch (IOException e) {
+        Log.w(TAG, "Could not read queue : " + e.getMessage());
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+          }
+        }
+      }
+    }
+
+    queued.clear();
+    waiting.clear();
+    for (Long key : order) {
+      TileStore.TilePos pos = live.get(key);
+      if ((pos != null) && !queued.contains(key)) {
+        queued.put(key, pos);
+        waiting.add(pos);
+      }
+    }
+    rewrite();
+    return waiting.size();
+  }
+
+  // Queue the tiles not already queued, returning how many were new
+  synchronized int add(List<TileStore.TilePos> targets) {
+    int n_new = 0;
+    try {
+      open();
+      for (TileStore.TilePos pos : targets) {
+        long key = pos.key();
+        if (!queued.contains(key)) {
+          queued.put(key, pos);
+          waiting.add(pos);
+          out.writeByte(OP_ADD);
+          out.writeLong(key);
+          ++n_new;
+        }
+      }
+      out.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write queue : " + e.getMessage());
+      close();
+    }
+    return n_new;
+  }
+
+  // The next tile to fetch, or null if none are waiting
+  synchronized TileStore.TilePos take() {
+    if (waiting.size() > 0) {
+      return waiting.removeFirst();
+    } else {
+      return null;
+    }
+  }
+
+  // The tile take() would return next, left in place
+  synchronized TileStore.TilePos peek() {
+    if (waiting.size() > 0) {
+      return waiting.getFirst();
+    } else {
+      return null;
+    }
+  }
+
+  // Mark a tile handed out by take() as finished, whether it was fetched or
+  // not
+  synchronized void done(TileStore.TilePos pos) {
+    long key = pos.key();
+    if (queued.remove(key) == null) {
+      return;
+    }
+    ++n_done;
+    if (queued.size() == 0) {
+      // Nothing outstanding, so the journal can start afresh
+      rewrite();
+      return;
+    }
+    try {
+      open();
+      out.writeByte(OP_DONE);
+      out.writeLong(key);
+      out.flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write queue : " + e.getMessage());
+      close();
+    }
+  }
+
+  // Tiles queued and not yet finished
+  synchronized int n_outstanding() {
+    return queued.size();
+  }
+
+  // Tiles finished since the queue was last empty
+  synchronized int n_done() {
+    return n_done;
+  }
+
+  synchronized void reset_progress() {
+    n_done = 0;
+  }
+
+  // Internal
+
+  private void open() throws IOException {
+    if (out == null) {
+      File dir = file.getParentFile();
+      if ((dir != null) && !dir.exists()) {
+        dir.mkdirs();
+      }
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+      }
+      out = null;
+    }
+  }
+
+  // Replace the journal with one just adding the outstanding tiles.  Written
+  // to a new file first so a crash leaves one or other intact.
+  private void rewrite() {
+    close();
+    File tmp = new File(file.getPath() + ".new");
+    DataOutputStream dos = null;
+    try {
+      File dir = file.getParentFile();
+      if ((dir != null) && !dir.exists()) {
+        dir.mkdirs();
+      }
+      dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      for (TileStore.TilePos pos : waiting) {
+        dos.writeByte(OP_ADD);
+        dos.writeLong(pos.key());
+      }
+      dos.close();
+      dos = null;
+      if (!tmp.renameTo(file)) {
+        Log.w(TAG, "Could not replace " + file.getPath());
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not rewrite queue : " + e.getMessage());
+    } finally {
+      if (dos != null) {
+        try {
+          dos.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -32,33 +32,63 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 import android.os.Handler;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import java.lang.Runnable;
 import java.net.URI;
 import java.io.File;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class Downloader {
 
-  static private boolean is_busy;
   static private Context mContext;
   static private Handler mHandler;
   static final private String TAG = "Downloader";
 
+  // Most tiles fetched at once, over all map sources.  Each source sets its
+  // own (lower) limit with MapSource.get_parallelism().
+  static final private int MAX_WORKERS = 4;
+  // Seconds an idle worker thread waits for more work before exiting
+  static final private int WORKER_KEEPALIVE = 30;
+
+  static private TileFetcher mFetcher;
+  static private ThreadPoolExecutor pool;
+  static private DownloadQueue queue;
+  // Workers running; guarded by the class lock
+  static private int n_workers;
+
   static void init (Context _app_context) {
     mContext = _app_context;
     mHandler = new Handler();
-    is_busy = false;
+    n_workers = 0;
+    mFetcher = new TileFetcher(MAX_WORKERS, MAX_WORKERS);
+    pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+        WORKER_KEEPALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private int count = 0;
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TileDownload-" + (++count));
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+
+    // Carry on with whatever was left when the process last died
+    queue = new DownloadQueue(new File("/sdcard/LogMyGsm/prefs/downloads.jnl"));
+    int n_left = queue.load();
+    if (n_left > 0) {
+      Logger.announce(mContext, "Resuming download of " + n_left + " tiles");
+      start_workers(queue.peek().map_source.get_parallelism());
+    }
   }
 
-  private static boolean download(String the_url, String the_dest) {
+  // Returns true if a new copy of the tile was written
+  private static boolean download(TileStore.TilePos pos, String the_url, String the_dest) {
     boolean result;
     result = false;
 
@@ -68,24 +98,13 @@ class Downloader {
       if (!dir.exists()) {
         dir.mkdirs();
       }
-      if (!file.exists() ||
-          (file.lastModified() < TileStore.get_epoch())) {
-        URI uri = new URI("http", the_url, null);
-        HttpGet get = new HttpGet(uri);
-        HttpClient client = new DefaultHttpClient();
-        HttpResponse response = client.execute(get);
-        HttpEntity entity = response.getEntity();
-
-        OutputStream out = null;
-        try {
-          out = new BufferedOutputStream(new FileOutputStream(file));
-          entity.writeTo(out);
-          result = true;
-        } finally {
-          if (out != null) {
-            out.close();
-          }
-        }
+      // Tiles from before this run are revalidated rather than fetched
+      // again in full.
+      URI uri = new URI("http", the_url, null);
+      int status = mFetcher.fetch(uri, file, true);
+      result = (status == TileFetcher.FETCHED);
+      if (status != TileFetcher.FAILED) {
+        TilePresence.added(pos);
       }
     } catch (Exception e) {
       //Log.i(TAG, "download excepted : " + e.getClass().getName() + " : " + e.getMessage());
@@ -93,99 +112,128 @@ class Downloader {
     return result;
   }
 
-  private static class DownloadResponse implements Runnable {
-    private boolean response;
-    DownloadResponse(boolean _response) {
-      response = _response;
+  // A tile has been downloaded : replace just that one in the tile cache
+  private static class TileLanded implements Runnable {
+    private TileStore.TilePos pos;
+    TileLanded(TileStore.TilePos _pos) {
+      pos = _pos;
     }
     @Override
     public void run() {
-      // Crude, needs to be made finer-grained maybe...
-      // Toss the whole tile cache then redraw.
-      // It's the only way to get the newly fetched tile to be used
-      is_busy = false;
-      TileStore.invalidate();
+      TileStore.tile_updated(pos);
+    }
+  }
+
+  // The queue has drained
+  private static class DownloadResponse implements Runnable {
+    @Override
+    public void run() {
+      // Redraw to clear the progress display
       Intent intent = new Intent(Logger.UPDATE_GPS);
       mContext.sendBroadcast(intent);
     }
   }
 
-  private static class OneJob {
-    String url;
-    String dest;
-
-    OneJob(String _url, String _dest) {
-      url = _url;
-      dest = _dest;
+  private static class Worker implements Runnable {
+    @Override
+    public void run () {
+      TileStore.TilePos job;
+      while ((job = next_job()) != null) {
+        String url = job.map_source.get_download_url(job.zoom, job.x, job.y);
+        String dest = job.map_source.get_tile_path(job.zoom, job.x, job.y);
+        // Tiles already fetched or revalidated this run need no request, so
+        // don't take any of the budget
+        File file = new File(dest);
+        if ((url != null) &&
+            (!file.exists() || (file.lastModified() < TileStore.get_epoch()))) {
+          // Keep within what the source's servers will put up with
+          DownloadBudget budget = job.map_source.get_budget();
+          budget.acquire();
+          try {
+            if (download(job, url, dest)) {
+              mHandler.post (new TileLanded(job));
+            }
+          } finally {
+            budget.release();
+          }
+        }
+        queue.done(job);
+      }
     }
   }
 
-  private static class DownloadThread extends Thread {
-    private LinkedList<OneJob> jobs;
-
-    DownloadThread(LinkedList<OneJob> _jobs) {
-      jobs = _jobs;
-      setPriority(Thread.MIN_PRIORITY);
+  // The next tile for a worker, or null if the worker should stop.  The last
+  // worker to stop reports back.
+  private static synchronized TileStore.TilePos next_job() {
+    TileStore.TilePos job = queue.take();
+    if (job == null) {
+      --n_workers;
+      if (n_workers == 0) {
+        mFetcher.close_idle();
+        mHandler.post (new DownloadResponse());
+        queue.reset_progress();
+      }
     }
+    return job;
+  }
 
-    @Override
-    public void run () {
-      boolean result;
-      result = true; // unused
-      while (jobs.size() > 0) {
-        OneJob job = jobs.removeFirst();
-        result = download(job.url, job.dest);
-      }
-      mHandler.post (new DownloadResponse(result));
+  private static synchronized void start_workers(int wanted) {
+    int n = Math.min(wanted, MAX_WORKERS);
+    while (n_workers < n) {
+      ++n_workers;
+      pool.execute(new Worker());
     }
   }
 
-  static void start_multiple_fetch(LinkedList<TileStore.TilePos> targets, Context context) {
-    if (is_busy) {
-      Logger.announce(context, "Already downloading");
-      return;
+  // Tiles downloaded, or given up on, since the queue was last empty
+  static int get_n_done() {
+    return queue.n_done();
+  }
+
+  // Tiles queued and not yet finished
+  static int get_n_outstanding() {
+    return queue.n_outstanding();
+  }
+
+  // Add tiles to the download queue and make sure workers are running.
+  // Tiles already queued are skipped.  Returns how many were added.  Safe
+  // to call from any thread.
+  static int enqueue(List<TileStore.TilePos> targets) {
+    if (targets.size() == 0) {
+      return 0;
     }
+    int n_new = queue.add(targets);
+    start_workers(targets.get(0).map_source.get_parallelism());
+    return n_new;
+  }
 
-    LinkedList<OneJob> jobs;
-    jobs = new LinkedList<OneJob> ();
+  static void start_multiple_fetch(LinkedList<TileStore.TilePos> targets, Context context) {
+    LinkedList<TileStore.TilePos> jobs;
+    jobs = new LinkedList<TileStore.TilePos> ();
 
     while (targets.size() > 0) {
       TileStore.TilePos target = targets.removeFirst();
-      String url = target.map_source.get_download_url(target.zoom, target.x, target.y);
-      String dest = target.map_source.get_tile_path(target.zoom, target.x, target.y);
-      if (url != null) {
-        jobs.add(new OneJob(url, dest));
+      if (target.map_source.get_download_url(target.zoom, target.x, target.y) != null) {
+        jobs.add(target);
       }
     }
-    is_busy = true;
-    (new DownloadThread(jobs)).start();
+    int n_new = enqueue(jobs);
+    int n_outstanding = queue.n_outstanding();
+    if (n_outstanding > n_new) {
+      Logger.announce(context, "Queued " + n_new + " tiles, " + n_outstanding + " to download");
+    }
   }
 
   static void start_fetch_single(int zoom, MapSource map_source, int tile_x, int tile_y, Context context) {
-    // If already fetching, post a "busy" toast
-    // otherwise start the download in a thread.
-    // Eventually, could have a queue of tiles.
-
-    if (is_busy) {
-      Logger.announce(context, "Already downloading");
-      return;
-    }
-
-    LinkedList<OneJob> jobs;
-    jobs = new LinkedList<OneJob> ();
-
-    String url = map_source.get_download_url(zoom, tile_x, tile_y);
-    if (url == null) {
+    if (map_source.get_download_url(zoom, tile_x, tile_y) == null) {
       Logger.announce(context, "Cannot download this map");
       return;
     }
 
-    String dest = map_source.get_tile_path(zoom, tile_x, tile_y);
-
-    jobs.add(new OneJob(url, dest));
-
-    is_busy = true;
-    (new DownloadThread(jobs)).start();
+    LinkedList<TileStore.TilePos> targets;
+    targets = new LinkedList<TileStore.TilePos> ();
+    targets.add(new TileStore.TilePos(zoom, tile_x, tile_y, map_source));
+    start_multiple_fetch(targets, context);
   }
 
 }
@@ -0,0 +1,207 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Builds the per-fix log line written by Logger.logToFile(), i.e.
+//   String.format("%12.7f %12.7f %3d %c %c %10d %10d %3d %s %.1f %d\n", ...)
+// with the same output, but in a reused char buffer and without a Formatter,
+// boxing or intermediate strings.  format_bytes() gives the encoded line
+// for Backend without going through a String at all.
+//
+// Doubles are rounded with integer arithmetic.  Where a value is so close
+// to halfway between two outputs that the Formatter's own rounding rules
+// matter, or isn't finite, that one field goes through String.format.  If
+// the locale doesn't write numbers as plain ASCII with '.', the whole line
+// does.
+
+import java.text.DecimalFormatSymbols;
+
+class FixFormatter {
+
+  // How close to a rounding tie the fast path will go, in units of the last
+  // digit printed.  Far bigger than the error in scaling a double by 10^7.
+  static final private double TIE_MARGIN = 1.0e-4;
+  // Largest scaled value the fast path handles exactly.  The Formatter
+  // rounds the shortest decimal form of the double rather than its exact
+  // value, so the ulp of the scaled value has to stay well inside
+  // TIE_MARGIN as well : at 1e11 it is about 1.5e-5.
+  static final private double MAX_SCALED = 1.0e11;
+
+  static final private long [] POWERS = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L
+  };
+
+  private char [] buf;
+  private int n;
+  private char [] digits;
+  private boolean plain;
+
+  FixFormatter() {
+    buf = new char[128];
+    digits = new char[24];
+    DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+    plain = (symbols.getDecimalSeparator() == '.') &&
+      (symbols.getZeroDigit() == '0') &&
+      (symbols.getMinusSign() == '-');
+  }
+
+  String format(double lat, double lon, int acc, char state, char network_type,
+      int cid, int lac, int dBm, String mcc_mnc, double alt, int time) {
+    if (!plain) {
+      return String.format("%12.7f %12.7f %3d %c %c %10d %10d %3d %s %.1f %d\n",
+          lat, lon, acc, state, network_type, cid, lac, dBm, mcc_mnc, alt, time);
+    }
+    fill(lat, lon, acc, state, network_type, cid, lac, dBm, mcc_mnc, alt, time);
+    return new String(buf, 0, n);
+  }
+
+  // The same line, encoded as String.getBytes() would, for Backend.  A
+  // line that is all ASCII (i.e. nearly always) goes straight from the
+  // buffer into the one array.
+  byte [] format_bytes(double lat, double lon, int acc, char state, char network_type,
+      int cid, int lac, int dBm, String mcc_mnc, double alt, int time) {
+    if (!plain) {
+      return format(lat, lon, acc, state, network_type, cid, lac, dBm, mcc_mnc, alt, time).getBytes();
+    }
+    fill(lat, lon, acc, state, network_type, cid, lac, dBm, mcc_mnc, alt, time);
+    byte [] result = new byte[n];
+    for (int i = 0; i < n; i++) {
+      char c = buf[i];
+      if (c >= 0x80) {
+        return new String(buf, 0, n).getBytes();
+      }
+      result[i] = (byte) c;
+    }
+    return result;
+  }
+
+  // Internal
+
+  private void fill(double lat, double lon, int acc, char state, char network_type,
+      int cid, int lac, int dBm, String mcc_mnc, double alt, int time) {
+    n = 0;
+    put_fixed(lat, 7, 12);
+    put(' ');
+    put_fixed(lon, 7, 12);
+    put(' ');
+    put_int(acc, 3);
+    put(' ');
+    put(state);
+    put(' ');
+    put(network_type);
+    put(' ');
+    put_int(cid, 10);
+    put(' ');
+    put_int(lac, 10);
+    put(' ');
+    put_int(dBm, 3);
+    put(' ');
+    put_string((mcc_mnc != null) ? mcc_mnc : "null");
+    put(' ');
+    put_fixed(alt, 1, 0);
+    put(' ');
+    put_int(time, 0);
+    put('\n');
+  }
+
+  private void put(char c) {
+    if (n == buf.length) {
+      char [] bigger = new char[buf.length << 1];
+      System.arraycopy(buf, 0, bigger, 0, n);
+      buf = bigger;
+    }
+    buf[n++] = c;
+  }
+
+  private void put_string(String s) {
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      put(s.charAt(i));
+    }
+  }
+
+  // %<width>d
+  private void put_int(long v, int width) {
+    boolean negative = (v < 0);
+    // Work with the negative value so that Long.MIN_VALUE needs no special case
+    long m = negative ? v : -v;
+    int nd = 0;
+    do {
+      digits[nd++] = (char) ('0' - (m % 10));
+      m /= 10;
+    } while (m != 0);
+    int len = nd + (negative ? 1 : 0);
+    for (int i = len; i < width; i++) {
+      put(' ');
+    }
+    if (negative) {
+      put('-');
+    }
+    while (nd > 0) {
+      put(digits[--nd]);
+    }
+  }
+
+  // %<width>.<precision>f
+  private void put_fixed(double v, int precision, int width) {
+    double scaled = Math.abs(v) * (double) POWERS[precision];
+    double frac = scaled - Math.floor(scaled);
+    if (Double.isNaN(v) || Double.isInfinite(v) || (scaled >= MAX_SCALED) ||
+        (Math.abs(frac - 0.5) < TIE_MARGIN)) {
+      String format = (width > 0) ? ("%" + width + "." + precision + "f") : ("%." + precision + "f");
+      put_string(String.format(format, v));
+      return;
+    }
+    long r = (long) Math.floor(scaled) + ((frac > 0.5) ? 1 : 0);
+    // The Formatter keeps the sign of negative values that round to zero
+    boolean negative = (Double.doubleToLongBits(v) < 0);
+    long int_part = r / POWERS[precision];
+    long frac_part = r % POWERS[precision];
+    int nd = 0;
+    for (int i = 0; i < precision; i++) {
+      digits[nd++] = (char) ('0' + (frac_part % 10));
+      frac_part /= 10;
+    }
+    digits[nd++] = '.';
+    do {
+      digits[nd++] = (char) ('0' + (int_part % 10));
+      int_part /= 10;
+    } while (int_part != 0);
+    int len = nd + (negative ? 1 : 0);
+    for (int i = len; i < width; i++) {
+      put(' ');
+    }
+    if (negative) {
+      put('-');
+    }
+    while (nd > 0) {
+      put(digits[--nd]);
+    }
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,138 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// gzip output where every flush() ends a complete gzip member, so that if
+// the process dies, everything up to the last flush can still be read back.
+// gzip readers treat a file of several members as one stream (zcat, and
+// java.util.zip.GZIPInputStream).  Nothing is written for a flush with no
+// data since the last one.
+//
+// GZIPOutputStream can't do this before API level 19 : its flush() leaves
+// the data in the Deflater.  Each member is deflated from scratch, so
+// members want to hold a few KB of data to compress well.
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+class GzipBlockStream extends OutputStream {
+
+  static final private byte [] MEMBER_HEADER = {
+    (byte) 0x1f, (byte) 0x8b, // magic
+    8,                        // deflate
+    0,                        // no flags
+    0, 0, 0, 0,               // no mtime
+    0,                        // no extra flags
+    (byte) 255                // unknown OS
+  };
+
+  private OutputStream out;
+  private Deflater deflater;
+  private CRC32 crc;
+  private byte [] buf;
+  // Uncompressed bytes in the current member
+  private int n_in_member;
+  private byte [] one;
+
+  GzipBlockStream(OutputStream _out) {
+    out = _out;
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    crc = new CRC32();
+    buf = new byte[8192];
+    n_in_member = 0;
+    one = new byte[1];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    one[0] = (byte) b;
+    write(one, 0, 1);
+  }
+
+  @Override
+  public void write(byte [] data, int offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (n_in_member == 0) {
+      out.write(MEMBER_HEADER);
+    }
+    crc.update(data, offset, length);
+    n_in_member += length;
+    deflater.setInput(data, offset, length);
+    while (!deflater.needsInput()) {
+      drain();
+    }
+  }
+
+  // Ends the member and flushes it through to the underlying stream
+  @Override
+  public void flush() throws IOException {
+    if (n_in_member > 0) {
+      deflater.finish();
+      while (!deflater.finished()) {
+        drain();
+      }
+      write_le_int((int) crc.getValue());
+      write_le_int(n_in_member);
+      deflater.reset();
+      crc.reset();
+      n_in_member = 0;
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+
+  // Internal
+
+  private void drain() throws IOException {
+    int n = deflater.deflate(buf, 0, buf.length);
+    if (n > 0) {
+      out.write(buf, 0, n);
+    }
+  }
+
+  private void write_le_int(int value) throws IOException {
+    out.write(value);
+    out.write(value >> 8);
+    out.write(value >> 16);
+    out.write(value >> 24);
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,533 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Sidecar index for one log file, so LogQuery can go straight to the parts
+// of a log that might match instead of reading all of it.
+//
+// The log is split into blocks that can each be read on their own : for a
+// gzipped log, each gzip member (one per Backend flush, see
+// GzipBlockStream); otherwise, runs of BLOCK_RECORDS lines or records.  The
+// index holds each block's position, time range and the (lac, cid) pairs
+// seen in it.  It lives next to the log as <log>.idx, and is rebuilt if
+// the log has changed since (e.g. it was still being written).
+//
+// Index layout (big-endian) :
+//   header : magic, version                          2 ints
+//            log length, log modification time       2 longs
+//            binary?, record size, number of blocks  3 ints
+//   block  : offset, length, first time, last time,  long, 4 ints
+//            number of cells
+//            cells, as LogQuery.cell_key()            long each, sorted
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+class LogIndex {
+
+  static final String SUFFIX = ".idx";
+
+  static final private int MAGIC = 0x4c4d4749; // "LMGI"
+  static final private int VERSION = 1;
+  static final private int BLOCK_RECORDS = 512;
+
+  private File log;
+  private boolean binary;
+  private boolean gzip;
+  private int record_bytes;
+
+  private int n_blocks;
+  private long [] offsets;
+  private int [] lengths;
+  private int [] first_times;
+  private int [] last_times;
+  private long [][] cells;
+
+  // Fixes passed on by the last query()
+  int n_matched;
+
+  private LogIndex(File _log) {
+    log = _log;
+    String name = log.getName();
+    gzip = name.endsWith(".gz");
+    binary = name.endsWith(BinaryLog.SUFFIX) || name.endsWith(BinaryLog.SUFFIX + ".gz");
+  }
+
+  // Loads the index for log, building (and saving) it if need be
+  static LogIndex open(File log) throws IOException {
+    LogIndex index = new LogIndex(log);
+    File file = new File(log.getPath() + SUFFIX);
+    if (!index.load(file)) {
+      index.build();
+      index.save(file);
+    }
+    return index;
+  }
+
+  int get_n_blocks() {
+    return n_blocks;
+  }
+
+  // Passes the fixes in [from, to] (and on cell, if by_cell) to sink, and
+  // returns the number of blocks it had to read
+  int query(int from, int to, boolean by_cell, long cell, LogQuery.Sink sink) throws IOException {
+    n_matched = 0;
+    int n_read = 0;
+    RandomAccessFile file = null;
+    try {
+      for (int i = 0; i < n_blocks; i++) {
+        if ((last_times[i] < from) || (first_times[i] > to)) {
+          continue;
+        }
+        if (by_cell && (Arrays.binarySearch(cells[i], cell) < 0)) {
+          continue;
+        }
+        if (file == null) {
+          file = new RandomAccessFile(log, "r");
+        }
+        byte [] block = new byte[lengths[i]];
+        file.seek(offsets[i]);
+        file.readFully(block);
+        ++n_read;
+        ArrayList<LogQuery.Fix> fixes = new ArrayList<LogQuery.Fix> ();
+        decode_block(block, 0, block.length, offsets[i] == 0, fixes);
+        for (LogQuery.Fix fix : fixes) {
+          if ((fix.time >= from) && (fix.time <= to) &&
+              (!by_cell || (LogQuery.cell_key(fix.lac, fix.cid) == cell))) {
+            ++n_matched;
+            sink.fix(fix);
+          }
+        }
+      }
+    } finally {
+      if (file != null) {
+        file.close();
+      }
+    }
+    return n_read;
+  }
+
+  // Internal
+
+  private boolean load(File file) {
+    if (!file.exists()) {
+      return false;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      if ((in.readInt() != MAGIC) || (in.readInt() != VERSION) ||
+          (in.readLong() != log.length()) || (in.readLong() != log.lastModified()) ||
+          ((in.readInt() != 0) != binary)) {
+        return false;
+      }
+      record_bytes = in.readInt();
+      n_blocks = in.readInt();
+      allocate(n_blocks);
+      for (int i = 0; i < n_blocks; i++) {
+        offsets[i] = in.readLong();
+        lengths[i] = in.readInt();
+        first_times[i] = in.readInt();
+        last_times[i] = in.readInt();
+        cells[i] = new long[in.readInt()];
+        for (int j = 0; j < cells[i].length; j++) {
+          cells[i][j] = in.readLong();
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  // Not being able to save (e.g. a read-only copy of the logs) only costs
+  // rebuilding the index next time
+  private void save(File file) {
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(log.length());
+        out.writeLong(log.lastModified());
+        out.writeInt(binary ? 1 : 0);
+        out.writeInt(record_bytes);
+        out.writeInt(n_blocks);
+        for (int i = 0; i < n_blocks; i++) {
+          out.writeLong(offsets[i]);
+          out.writeInt(lengths[i]);
+          out.writeInt(first_times[i]);
+          out.writeInt(last_times[i]);
+          out.writeInt(cells[i].length);
+          for (long c : cells[i]) {
+            out.writeLong(c);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        temp.delete();
+      }
+    } catch (IOException e) {
+      temp.delete();
+    }
+  }
+
+  private void allocate(int n) {
+    offsets = new long[n];
+    lengths = new int[n];
+    first_times = new int[n];
+    last_times = new int[n];
+    cells = new long[n][];
+  }
+
+  // Blocks found while building, turned into the arrays at the end
+  private static class Block {
+    long offset;
+    int length;
+    int first_time = Integer.MAX_VALUE;
+    int last_time = Integer.MIN_VALUE;
+    TreeSet<Long> cells = new TreeSet<Long> ();
+
+    void add(LogQuery.Fix fix) {
+      first_time = Math.min(first_time, fix.time);
+      last_time = Math.max(last_time, fix.time);
+      cells.add(LogQuery.cell_key(fix.lac, fix.cid));
+    }
+  }
+
+  private void build() throws IOException {
+    ArrayList<Block> blocks = new ArrayList<Block> ();
+    if (gzip) {
+      build_gzip(blocks);
+    } else if (binary) {
+      build_binary(blocks);
+    } else {
+      build_text(blocks);
+    }
+    n_blocks = blocks.size();
+    allocate(n_blocks);
+    for (int i = 0; i < n_blocks; i++) {
+      Block block = blocks.get(i);
+      offsets[i] = block.offset;
+      lengths[i] = block.length;
+      first_times[i] = block.first_time;
+      last_times[i] = block.last_time;
+      cells[i] = new long[block.cells.size()];
+      int j = 0;
+      for (Long c : block.cells) {
+        cells[i][j++] = c;
+      }
+    }
+  }
+
+  private void build_gzip(ArrayList<Block> blocks) throws IOException {
+    // Segments are at most a few MB, so just read it all
+    byte [] data = read_all(log);
+    int [] end = new int[1];
+    int pos = 0;
+    while (pos < data.length) {
+      ArrayList<LogQuery.Fix> fixes = new ArrayList<LogQuery.Fix> ();
+      if (!decode_block(data, pos, data.length, pos == 0, fixes, end)) {
+        // Cut short by a crash
+        break;
+      }
+      Block block = new Block();
+      block.offset = pos;
+      block.length = end[0] - pos;
+      for (LogQuery.Fix fix : fixes) {
+        block.add(fix);
+      }
+      blocks.add(block);
+      pos = end[0];
+    }
+  }
+
+  private void build_binary(ArrayList<Block> blocks) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(log), 65536);
+    try {
+      record_bytes = BinaryLog.read_header(new DataInputStream(in));
+      byte [] chunk = new byte[BLOCK_RECORDS * record_bytes];
+      ByteBuffer b = ByteBuffer.wrap(chunk);
+      LogQuery.Fix fix = new LogQuery.Fix();
+      long offset = BinaryLog.HEADER_BYTES;
+      while (true) {
+        int n = read_up_to(in, chunk);
+        // Any record cut short at the end is left out
+        n -= n % record_bytes;
+        if (n == 0) {
+          break;
+        }
+        Block block = new Block();
+        block.offset = offset;
+        block.length = n;
+        for (int r = 0; r < n; r += record_bytes) {
+          if (BinaryLog.decode(b, r, fix)) {
+            block.add(fix);
+          }
+        }
+        blocks.add(block);
+        offset += n;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void build_text(ArrayList<Block> blocks) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(log), 65536);
+    try {
+      byte [] line = new byte[256];
+      LogQuery.Fix fix = new LogQuery.Fix();
+      long offset = 0;
+      Block block = null;
+      int n_lines = 0;
+      int n = 0;
+      int c;
+      while ((c = in.read()) >= 0) {
+        if (n < line.length) {
+          line[n] = (byte) c;
+        }
+        ++n;
+        if (c != '\n') {
+          continue;
+        }
+        if (block == null) {
+          block = new Block();
+          block.offset = offset;
+        }
+        if ((n <= line.length) && parse_line(line, 0, n, fix)) {
+          block.add(fix);
+        }
+        block.length += n;
+        offset += n;
+        n = 0;
+        if (++n_lines == BLOCK_RECORDS) {
+          blocks.add(block);
+          block = null;
+          n_lines = 0;
+        }
+      }
+      // A last line without its newline is left out
+      if (block != null) {
+        blocks.add(block);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private boolean decode_block(byte [] data, int start, int end, boolean first,
+      ArrayList<LogQuery.Fix> fixes) throws IOException {
+    return decode_block(data, start, end, first, fixes, new int[1]);
+  }
+
+  // Decodes the block starting at data[start] (which, for a gzipped log,
+  // runs on until the end of its member, returned in end[0]).  first is set
+  // for the block at the start of the file, which holds any binary header.
+  // Returns false for a gzip member that is cut short.
+  private boolean decode_block(byte [] data, int start, int end, boolean first,
+      ArrayList<LogQuery.Fix> fixes, int [] member_end) throws IOException {
+    if (gzip) {
+      data = inflate_member(data, start, end, member_end);
+      if (data == null) {
+        return false;
+      }
+      start = 0;
+      end = data.length;
+    }
+    if (binary) {
+      if (first) {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(data, start, end - start));
+        record_bytes = BinaryLog.read_header(header);
+        start += BinaryLog.HEADER_BYTES;
+      }
+      if (record_bytes <= 0) {
+        throw new IOException("No binary log header in " + log);
+      }
+      ByteBuffer b = ByteBuffer.wrap(data);
+      for (int r = start; r + record_bytes <= end; r += record_bytes) {
+        LogQuery.Fix fix = new LogQuery.Fix();
+        if (BinaryLog.decode(b, r, fix)) {
+          fixes.add(fix);
+        }
+      }
+    } else {
+      int line = start;
+      for (int i = start; i < end; i++) {
+        if (data[i] == '\n') {
+          LogQuery.Fix fix = new LogQuery.Fix();
+          if (parse_line(data, line, i + 1, fix)) {
+            fixes.add(fix);
+          }
+          line = i + 1;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Parses a text log line, i.e. what FixFormatter writes.  Returns false
+  // for markers and anything else that isn't a fix.
+  static private boolean parse_line(byte [] data, int start, int end, LogQuery.Fix fix) {
+    String [] fields = new String(data, start, end - start).trim().split(" +");
+    if ((fields.length != 11) || (fields[3].length() != 1) || (fields[4].length() != 1)) {
+      return false;
+    }
+    try {
+      fix.lat = Double.parseDouble(fields[0]);
+      fix.lon = Double.parseDouble(fields[1]);
+      fix.acc = Integer.parseInt(fields[2]);
+      fix.state = fields[3].charAt(0);
+      fix.network_type = fields[4].charAt(0);
+      fix.cid = Integer.parseInt(fields[5]);
+      fix.lac = Integer.parseInt(fields[6]);
+      fix.dBm = Integer.parseInt(fields[7]);
+      fix.mcc_mnc = fields[8].equals("null") ? null : fields[8];
+      fix.alt = Double.parseDouble(fields[9]);
+      fix.time = Integer.parseInt(fields[10]);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  // Inflates the gzip member at data[start], setting member_end[0] to
+  // where the next one starts.  Returns null if the member is cut short or
+  // isn't one.
+  static private byte [] inflate_member(byte [] data, int start, int end, int [] member_end) {
+    // Header : see RFC 1952
+    if ((end - start < 10) || (data[start] != (byte) 0x1f) ||
+        (data[start+1] != (byte) 0x8b) || (data[start+2] != 8)) {
+      return null;
+    }
+    int flags = data[start+3];
+    int pos = start + 10;
+    if ((flags & 4) != 0) {
+      if (pos + 2 > end) {
+        return null;
+      }
+      pos += 2 + ((data[pos] & 0xff) | ((data[pos+1] & 0xff) << 8));
+    }
+    for (int bit = 8; bit <= 16; bit <<= 1) {
+      if ((flags & bit) != 0) {
+        while ((pos < end) && (data[pos] != 0)) {
+          ++pos;
+        }
+        ++pos;
+      }
+    }
+    if ((flags & 2) != 0) {
+      pos += 2;
+    }
+    if (pos >= end) {
+      return null;
+    }
+
+    Inflater inflater = new Inflater(true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+    byte [] buf = new byte[16384];
+    try {
+      inflater.setInput(data, pos, end - pos);
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buf);
+        if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        out.write(buf, 0, n);
+      }
+      // Skip the CRC and length after the compressed data
+      int next = end - inflater.getRemaining() + 8;
+      if (next > end) {
+        return null;
+      }
+      member_end[0] = next;
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+    return out.toByteArray();
+  }
+
+  static private byte [] read_all(File file) throws IOException {
+    byte [] data = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int n = read_up_to(in, data);
+      if (n < data.length) {
+        // Shrunk since it was measured
+        byte [] shorter = new byte[n];
+        System.arraycopy(data, 0, shorter, 0, n);
+        data = shorter;
+      }
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  // Fills buf unless the stream ends first, and returns how much it read
+  static private int read_up_to(InputStream in, byte [] buf) throws IOException {
+    int n = 0;
+    while (n < buf.length) {
+      int got = in.read(buf, n, buf.length - n);
+      if (got < 0) {
+        break;
+      }
+      n += got;
+    }
+    return n;
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -37,7 +37,23 @@ public class LogMyGSM extends Application {
 
   @Override
   public void onLowMemory() {
-    TileStore.invalidate();
+    TileStore.trim(0.0f);
+  }
+
+  // Levels from ComponentCallbacks2 (API 14).  Older platforms never call
+  // onTrimMemory, and only onLowMemory applies there.
+  static final private int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+  static final private int TRIM_MEMORY_BACKGROUND = 40;
+  static final private int TRIM_MEMORY_COMPLETE = 80;
+
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_COMPLETE) {
+      TileStore.trim(0.0f);
+    } else if (level >= TRIM_MEMORY_BACKGROUND) {
+      TileStore.trim(0.25f);
+    } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      TileStore.trim(0.5f);
+    }
   }
 
 }
@@ -0,0 +1,208 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Finds the fixes in a directory of logs (as written by Backend, in any of
+// its formats) that fall in a time range and/or were on a given cell,
+// without reading the whole of every log : see LogIndex.  Doesn't need
+// Android, so it also runs on a desktop machine against a copy of the log
+// directory :
+//   java uk.org.rc0.logmygsm.LogQuery <log directory>
+//       [-from <time>] [-to <time>] [-cell <lac> <cid>]
+// where a time is "yyyy-MM-dd", "yyyy-MM-dd HH:mm" or seconds since the
+// epoch.  Matching fixes are printed in the text log format.
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+class LogQuery {
+
+  // One line of the log
+  static class Fix {
+    double lat;
+    double lon;
+    int acc;
+    char state;
+    char network_type;
+    int cid;
+    int lac;
+    int dBm;
+    String mcc_mnc;
+    double alt;
+    int time;
+
+    String format(FixFormatter formatter) {
+      return formatter.format(lat, lon, acc, state, network_type,
+          cid, lac, dBm, mcc_mnc, alt, time);
+    }
+  }
+
+  interface Sink {
+    void fix(Fix fix) throws IOException;
+  }
+
+  private File dir;
+  // Inclusive, in seconds since the epoch
+  private int from;
+  private int to;
+  private boolean by_cell;
+  private long cell;
+
+  // Statistics from the last run()
+  int n_files;
+  int n_blocks;
+  int n_blocks_read;
+  int n_fixes;
+
+  LogQuery(File _dir) {
+    dir = _dir;
+    from = Integer.MIN_VALUE;
+    to = Integer.MAX_VALUE;
+    by_cell = false;
+  }
+
+  void set_time_range(int _from, int _to) {
+    from = _from;
+    to = _to;
+  }
+
+  void set_cell(int lac, int cid) {
+    by_cell = true;
+    cell = cell_key(lac, cid);
+  }
+
+  static long cell_key(int lac, int cid) {
+    return ((long) lac << 32) | ((long) cid & 0xffffffffL);
+  }
+
+  static boolean is_log(String name) {
+    return !name.startsWith("raw_") &&
+      (name.endsWith(".log") || name.endsWith(".log.gz") ||
+       name.endsWith(BinaryLog.SUFFIX) || name.endsWith(BinaryLog.SUFFIX + ".gz"));
+  }
+
+  // Passes the matching fixes to sink, oldest log first, and returns how
+  // many there were.  Logs are named by their start time, so this is in
+  // time order unless the logs overlap.
+  int run(Sink sink) throws IOException {
+    n_files = 0;
+    n_blocks = 0;
+    n_blocks_read = 0;
+    n_fixes = 0;
+    String [] names = dir.list();
+    if (names == null) {
+      throw new IOException("Cannot list " + dir);
+    }
+    Arrays.sort(names);
+    for (String name : names) {
+      if (!is_log(name)) {
+        continue;
+      }
+      LogIndex index = LogIndex.open(new File(dir, name));
+      ++n_files;
+      n_blocks += index.get_n_blocks();
+      n_blocks_read += index.query(from, to, by_cell, cell, sink);
+      n_fixes += index.n_matched;
+    }
+    return n_fixes;
+  }
+
+  public static void main(String [] args) throws IOException {
+    if (args.length < 1) {
+      usage();
+    }
+    LogQuery query = new LogQuery(new File(args[0]));
+    int from = Integer.MIN_VALUE;
+    int to = Integer.MAX_VALUE;
+    int i = 1;
+    while (i < args.length) {
+      if (args[i].equals("-from") && (i + 1 < args.length)) {
+        from = parse_time(args[i+1]);
+        i += 2;
+      } else if (args[i].equals("-to") && (i + 1 < args.length)) {
+        to = parse_time(args[i+1]);
+        i += 2;
+      } else if (args[i].equals("-cell") && (i + 2 < args.length)) {
+        query.set_cell(Integer.parseInt(args[i+1]), Integer.parseInt(args[i+2]));
+        i += 3;
+      } else {
+        usage();
+      }
+    }
+    query.set_time_range(from, to);
+
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+    final FixFormatter formatter = new FixFormatter();
+    try {
+      query.run(new Sink() {
+        public void fix(Fix fix) throws IOException {
+          out.write(fix.format(formatter));
+        }
+      });
+    } finally {
+      out.close();
+    }
+    System.err.println(query.n_fixes + " fixes; read " + query.n_blocks_read +
+        " of " + query.n_blocks + " blocks in " + query.n_files + " logs");
+  }
+
+  // Internal
+
+  static private void usage() {
+    System.err.println("Usage : LogQuery <log directory> [-from <time>] [-to <time>] [-cell <lac> <cid>]");
+    System.exit(1);
+  }
+
+  static final private String [] TIME_FORMATS = {
+    "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"
+  };
+
+  static private int parse_time(String text) {
+    for (String format : TIME_FORMATS) {
+      SimpleDateFormat parser = new SimpleDateFormat(format);
+      parser.setLenient(false);
+      try {
+        return (int) (parser.parse(text).getTime() / 1000);
+      } catch (ParseException e) {
+      }
+    }
+    try {
+      return Integer.parseInt(text);
+    } catch (NumberFormatException e) {
+      usage();
+      return 0;
+    }
+  }
+
+}
+
+// vim:et:sw=2:sts=2
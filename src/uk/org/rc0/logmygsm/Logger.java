@@ -63,6 +63,11 @@ public class Logger extends Service {
   // mainlog is null until we've got the first GPS fix - so we don't open the
   // logfile needlessly.
   private Backend mainlog;
+  private FixFormatter fix_formatter;
+  // 'true' to log in the compact binary format; see BinaryLog
+  static final private boolean BINARY_LOG = false;
+  // 'true' to gzip the log segments; see Backend
+  static final private boolean COMPRESS_LOG = true;
   private RawLogger rawlog;
 
   static Trail mTrail;
@@ -140,6 +145,7 @@ public class Logger extends Service {
     init_recent_cids();
 
     rawlog = new RawLogger(false); // 'true' to re-enable raw logs for debug
+    fix_formatter = new FixFormatter();
     mTrail = new Trail(this);
     mMarks = new Landmarks();
 
@@ -357,15 +363,35 @@ public class Logger extends Service {
 
   private void logToFile() {
     if (mainlog == null) {
-      mainlog = new Backend("", this);
+      if (BINARY_LOG) {
+        mainlog = new Backend("", BinaryLog.SUFFIX,
+            BinaryLog.header(System.currentTimeMillis()), COMPRESS_LOG, this);
+      } else {
+        mainlog = new Backend("", ".log", null, COMPRESS_LOG, this);
+      }
     }
     if (bookmark_next_time) {
-      mainlog.write("## MARKER " + bookmark_count + "\n");
+      if (BINARY_LOG) {
+        mainlog.write(BinaryLog.marker(bookmark_count));
+      } else {
+        mainlog.write("## MARKER " + bookmark_count + "\n");
+      }
       bookmark_next_time = false;
       ++bookmark_count;
     }
     ++nReadings;
-    String data = String.format("%12.7f %12.7f %3d %c %c %10d %10d %3d %s %.1f %d\n",
+    if (BINARY_LOG) {
+      mainlog.write(BinaryLog.fix(
+          lastLat, lastLon, lastAcc,
+          lastState,
+          lastNetworkType, lastCid, lastLac,
+          lastdBm,
+          lastMccMnc,
+          lastAlt,
+          (int)(lastTime/1000)));
+      return;
+    }
+    byte [] data = fix_formatter.format_bytes(
         lastLat, lastLon, lastAcc,
         lastState,
         lastNetworkType, lastCid, lastLac,
@@ -0,0 +1,201 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Hash map from primitive long keys to objects, using open addressing with
+// linear probing.  Used where the key is naturally a packed integer (e.g. a
+// tile position) so that lookups don't need to allocate a key object.
+//
+// Not thread-safe : callers that share an instance between threads have to
+// do their own locking.
+
+class LongMap<V> {
+
+  static final private int MIN_CAPACITY = 16;
+
+  private long [] keys;
+  private Object [] values;
+  private int mask;
+  private int n;
+
+  LongMap() {
+    this(MIN_CAPACITY);
+  }
+
+  LongMap(int expected) {
+    int cap = MIN_CAPACITY;
+    // Keep the load factor under 0.5
+    while (cap < (expected << 1)) {
+      cap <<= 1;
+    }
+    alloc(cap);
+  }
+
+  private void alloc(int cap) {
+    keys = new long[cap];
+    values = new Object[cap];
+    mask = cap - 1;
+    n = 0;
+  }
+
+  // 64-bit finaliser from MurmurHash3 : spreads neighbouring tile positions
+  // over the whole table
+  static private int hash(long k) {
+    k ^= (k >>> 33);
+    k *= 0xff51afd7ed558ccdL;
+    k ^= (k >>> 33);
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= (k >>> 33);
+    return (int) k;
+  }
+
+  int size() {
+    return n;
+  }
+
+  // Number of slots, for iterating with key_at() and value_at()
+  int capacity() {
+    return keys.length;
+  }
+
+  // Returns null if slot i is empty
+  @SuppressWarnings("unchecked")
+  V value_at(int i) {
+    return (V) values[i];
+  }
+
+  long key_at(int i) {
+    return keys[i];
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long k) {
+    int i = hash(k) & mask;
+    while (values[i] != null) {
+      if (keys[i] == k) {
+        return (V) values[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  boolean contains(long k) {
+    return get(k) != null;
+  }
+
+  // Returns the previous value for k, or null if there wasn't one
+  @SuppressWarnings("unchecked")
+  V put(long k, V v) {
+    if (v == null) {
+      return remove(k);
+    }
+    int i = hash(k) & mask;
+    while (values[i] != null) {
+      if (keys[i] == k) {
+        V old = (V) values[i];
+        values[i] = v;
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = k;
+    values[i] = v;
+    ++n;
+    if ((n << 1) > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  V remove(long k) {
+    int i = hash(k) & mask;
+    while (values[i] != null) {
+      if (keys[i] == k) {
+        V old = (V) values[i];
+        delete_slot(i);
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  // Backward-shift deletion : pull later members of the probe chain down
+  // into the hole so that no tombstones are needed.
+  private void delete_slot(int hole) {
+    int i = hole;
+    while (true) {
+      i = (i + 1) & mask;
+      if (values[i] == null) {
+        break;
+      }
+      int home = hash(keys[i]) & mask;
+      // Can the entry at i move down to the hole?  Only if its home slot
+      // is not cyclically in (hole, i]
+      boolean stays = (hole <= i) ?
+        ((hole < home) && (home <= i)) :
+        ((hole < home) || (home <= i));
+      if (!stays) {
+        keys[hole] = keys[i];
+        values[hole] = values[i];
+        hole = i;
+      }
+    }
+    values[hole] = null;
+    --n;
+  }
+
+  private void rehash(int cap) {
+    long [] old_keys = keys;
+    Object [] old_values = values;
+    alloc(cap);
+    for (int i=0; i<old_keys.length; i++) {
+      if (old_values[i] != null) {
+        int j = hash(old_keys[i]) & mask;
+        while (values[j] != null) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = old_keys[i];
+        values[j] = old_values[i];
+        ++n;
+      }
+    }
+  }
+
+  void clear() {
+    if (n > 0) {
+      for (int i=0; i<values.length; i++) {
+        values[i] = null;
+      }
+      n = 0;
+    }
+  }
+
+}
+
+// vim:et:sw=2:sts=2
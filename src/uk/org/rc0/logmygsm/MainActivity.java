@@ -63,6 +63,7 @@ public class MainActivity extends Activity implements Map.PositionListener {
   private Map mMap;
 
   private MenuItem mTowerlineToggle;
+  private MenuItem mLowMemoryToggle;
 
   private static final String PREFS_FILE = "prefs.txt";
   static final private String TAG = "MainActivity";
@@ -129,8 +130,8 @@ public class MainActivity extends Activity implements Map.PositionListener {
       // It seems wasteful to do this here, but there is no other safe opportunity to do so -
       // in effect we are 'committing' the user's changes at this point.
       mMap.save_state_to_file(PREFS_FILE);
-      // Dump the old tiles that haven't been rescued yet - avoid the most gratuituous memory wastage
-      TileStore.sleep_invalidate();
+      // Shed the less recently used tiles - avoid the most gratuitous memory wastage
+      TileStore.trim(TileStore.TRIM_PAUSED);
       super.onPause();
     }
 
@@ -370,9 +371,12 @@ public class MainActivity extends Activity implements Map.PositionListener {
   private final int OPTION_SHARE            = 12;
   private final int OPTION_DOWNLOAD_MISSING = 13;
   private final int OPTION_TOGGLE_TOWERLINE = 15;
+  private final int OPTION_TOGGLE_LOW_MEMORY = 16;
   private final int OPTION_LOG_MARKER       = 20;
   private final int OPTION_DOWNLOAD_33      = 21;
   private final int OPTION_DOWNLOAD_55      = 22;
+  private final int OPTION_DOWNLOAD_AREA    = 23;
+  private final int OPTION_DOWNLOAD_TRAIL   = 24;
 
   @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -384,6 +388,8 @@ public class MainActivity extends Activity implements Map.PositionListener {
       }
       mTowerlineToggle = sub.add (Menu.NONE, OPTION_TOGGLE_TOWERLINE, Menu.NONE, "Show towerline");
       mTowerlineToggle.setCheckable(true);
+      mLowMemoryToggle = sub.add (Menu.NONE, OPTION_TOGGLE_LOW_MEMORY, Menu.NONE, "16-bit tiles");
+      mLowMemoryToggle.setCheckable(true);
       MenuItem m_waypoints =
         menu.add (Menu.NONE, OPTION_BIG_MAP, Menu.NONE, "Waypoints");
       m_waypoints.setIcon(android.R.drawable.ic_menu_myplaces);
@@ -394,6 +400,8 @@ public class MainActivity extends Activity implements Map.PositionListener {
       m_download.add (Menu.NONE, OPTION_DOWNLOAD_MISSING, Menu.NONE, "Recent missing");
       m_download.add (Menu.NONE, OPTION_DOWNLOAD_33, Menu.NONE, "3x3 region");
       m_download.add (Menu.NONE, OPTION_DOWNLOAD_55, Menu.NONE, "5x5 region");
+      m_download.add (Menu.NONE, OPTION_DOWNLOAD_AREA, Menu.NONE, "Screen, 3 zooms");
+      m_download.add (Menu.NONE, OPTION_DOWNLOAD_TRAIL, Menu.NONE, "Along trail, 3 zooms");
 
       // Bottom row
       MenuItem m_logmark =
@@ -411,6 +419,7 @@ public class MainActivity extends Activity implements Map.PositionListener {
   @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
       mTowerlineToggle.setChecked(TowerLine.is_active());
+      mLowMemoryToggle.setChecked(TileStore.is_low_memory());
       return true;
     }
 
@@ -436,6 +445,12 @@ public class MainActivity extends Activity implements Map.PositionListener {
         case OPTION_DOWNLOAD_55:
           mMap.trigger_fetch_around(2, getApplicationContext());
           return true;
+        case OPTION_DOWNLOAD_AREA:
+          mMap.trigger_fetch_area(2, getApplicationContext());
+          return true;
+        case OPTION_DOWNLOAD_TRAIL:
+          mMap.trigger_fetch_trail(2, getApplicationContext());
+          return true;
         case OPTION_SHARE:
           mMap.share_grid_ref(this);
           return true;
@@ -449,6 +464,10 @@ public class MainActivity extends Activity implements Map.PositionListener {
         case OPTION_TOGGLE_TOWERLINE:
           TowerLine.toggle_active();
           return true;
+        case OPTION_TOGGLE_LOW_MEMORY:
+          TileStore.set_low_memory(!TileStore.is_low_memory());
+          mMap.invalidate();
+          return true;
         default:
           MapSource source;
           source = MapSources.lookup(code);
@@ -201,6 +201,16 @@ public class Map extends View {
     }
   }
 
+  // Progress through the download queue, while there is one
+  private void draw_download_progress(Canvas c, int w, int h) {
+    int n_outstanding = Downloader.get_n_outstanding();
+    if (n_outstanding > 0) {
+      int n_done = Downloader.get_n_done();
+      String text = String.format("Tiles %d/%d", n_done, n_done + n_outstanding);
+      c.drawText(text, 10, h - 10, red_paint);
+    }
+  }
+
   private void draw_buttons(Canvas c, int w, int h) {
     int button_offset = button_radius + (button_radius >> 1);
     // draw plus
@@ -229,6 +239,7 @@ public class Map extends View {
     draw_centre_circle(canvas, width, height);
     draw_buttons(canvas, width, height);
     draw_bearing(canvas, width, height);
+    draw_download_progress(canvas, width, height);
     Logger.mMarks.draw(canvas, display_pos, width, height, pixel_shift);
     if (TowerLine.is_active()) {
       TowerLine.draw_line(canvas, width, height, pixel_shift, display_pos);
@@ -378,6 +389,27 @@ public class Map extends View {
   }
 
 
+  // Fetch everything on screen, from this zoom level down 'depth' more
+  void trigger_fetch_area(int depth, Context context) {
+    if (display_pos != null) {
+      int half_w = (getWidth() / 2) << pixel_shift;
+      int half_h = (getHeight() / 2) << pixel_shift;
+      AreaFetch.box(context, map_source, zoom, zoom + depth,
+          display_pos.X - half_w, display_pos.Y - half_h,
+          display_pos.X + half_w, display_pos.Y + half_h).start();
+    }
+  }
+
+  // Fetch the tiles along the trail and either side of it
+  void trigger_fetch_trail(int depth, Context context) {
+    Trail.PointArray trail = Logger.mTrail.get_historical();
+    if (trail.n == 0) {
+      Logger.announce(context, "No trail to fetch along");
+      return;
+    }
+    AreaFetch.corridor(context, map_source, zoom, zoom + depth, trail, 1).start();
+  }
+
 //  void trigger_fetch(Context context) {
 //    if (display_pos != null) {
 //
@@ -406,7 +438,7 @@ public class Map extends View {
 
   void clear_trail() {
     Logger.mTrail.clear();
-    TileStore.invalidate();
+    TileStore.invalidate_trail();
     invalidate();
   }
 
@@ -25,15 +25,23 @@
 
 package uk.org.rc0.logmygsm;
 
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.SubMenu;
+import java.io.File;
+import java.io.IOException;
 
 class MapSource {
+  static final private String TAG = "MapSource";
   private String menu_name = "";
   private String path_segment = "";
   private int code;
   final private String path_start = "/sdcard/Maverick/tiles";
+  private DownloadBudget budget = null;
+  private TilePack pack = null;
+  private boolean pack_checked = false;
+  private boolean pack_only = false;
 
   String get_menu_name() {
     return menu_name;
@@ -44,6 +52,40 @@ class MapSource {
         path_start, path_segment, zoom, x, y);
   }
 
+  // Where a pack of this source's tiles goes, if there is one
+  String get_pack_path() {
+    return String.format("%s/%s.pack", path_start, path_segment);
+  }
+
+  // The pack of this source's tiles, or null if there isn't one.  Looked for
+  // once; restart to pick up a new pack.
+  synchronized TilePack get_pack() {
+    if (!pack_checked) {
+      pack_checked = true;
+      File file = new File(get_pack_path());
+      if (file.exists()) {
+        try {
+          pack = new TilePack(file);
+          pack_only = !new File(path_start, path_segment).exists();
+        } catch (IOException e) {
+          Log.w(TAG, "Cannot open tile pack : " + e.getMessage());
+          pack = null;
+        }
+      }
+    }
+    return pack;
+  }
+
+  // True if tiles come from the pack alone, without looking in the loose
+  // tile tree : there is a pack, and there was no tree beside it at startup.
+  // Tiles downloaded this run still land in the tree and are found through
+  // TilePresence.is_fresh(); after a restart the tree is looked in again
+  // until the pack is rebuilt and the tree removed.
+  synchronized boolean reads_from_pack() {
+    get_pack();
+    return pack_only;
+  }
+
   // Override in sub-classes for map types that can support download
   String get_download_url(int zoom, int x, int y) {
     return null;
@@ -53,6 +95,45 @@ class MapSource {
     return code;
   }
 
+  // How many tiles may be downloaded from this source at once
+  int get_parallelism() {
+    return 1;
+  }
+
+  // Average tile requests per second allowed, and how many may go at once
+  // after a pause
+  double get_max_rate() {
+    return 1.0;
+  }
+
+  int get_max_burst() {
+    return 1;
+  }
+
+  synchronized DownloadBudget get_budget() {
+    if (budget == null) {
+      budget = new DownloadBudget(get_parallelism(), get_max_rate(), get_max_burst());
+    }
+    return budget;
+  }
+
+  // Equivalent servers that requests can be spread over, or null if there
+  // is only one
+  String [] get_shards() {
+    return null;
+  }
+
+  // The server to fetch a tile from.  Always the same for a given tile, so
+  // that any caches along the way stay useful.  null if the source has no
+  // shards.
+  String shard_for(int x, int y) {
+    String [] shards = get_shards();
+    if (shards == null) {
+      return null;
+    }
+    return shards[((x + y) & 0x7fffffff) % shards.length];
+  }
+
   MapSource(String _menu_name, String _path_segment, int _code) {
     menu_name = _menu_name;
     path_segment = _path_segment;
@@ -69,8 +150,28 @@ class MapSource_Mapnik extends MapSource {
     super(_menu_name, _path_segment, _code);
   }
 
+  static final private String [] shards = { "a", "b", "c" };
+
+  String [] get_shards() {
+    return shards;
+  }
+
   String get_download_url(int zoom, int x, int y) {
-    return String.format("//a.tile.openstreetmap.org/%d/%d/%d.png", zoom, x, y);
+    return String.format("//%s.tile.openstreetmap.org/%d/%d/%d.png",
+        shard_for(x, y), zoom, x, y);
+  }
+
+  // The OSM tile usage policy asks for no more than 2
+  int get_parallelism() {
+    return 2;
+  }
+
+  double get_max_rate() {
+    return 4.0;
+  }
+
+  int get_max_burst() {
+    return 4;
   }
 
 };
@@ -83,8 +184,27 @@ class MapSource_Cycle extends MapSource {
     super(_menu_name, _path_segment, _code);
   }
 
+  static final private String [] shards = { "a", "b", "c" };
+
+  String [] get_shards() {
+    return shards;
+  }
+
   String get_download_url(int zoom, int x, int y) {
-    return String.format("//a.tile.opencyclemap.org/cycle/%d/%d/%d.png", zoom, x, y);
+    return String.format("//%s.tile.opencyclemap.org/cycle/%d/%d/%d.png",
+        shard_for(x, y), zoom, x, y);
+  }
+
+  int get_parallelism() {
+    return 2;
+  }
+
+  double get_max_rate() {
+    return 4.0;
+  }
+
+  int get_max_burst() {
+    return 4;
   }
 
 };
@@ -99,6 +219,14 @@ class MapSource_OS extends MapSource {
 
   static final char [] qk03 = "0123" . toCharArray();
 
+  static final private String [] shards = {
+    "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7"
+  };
+
+  String [] get_shards() {
+    return shards;
+  }
+
   String get_download_url(int zoom, int x, int y) {
     char [] quadkey = new char[zoom];
     int i;
@@ -108,7 +236,19 @@ class MapSource_OS extends MapSource {
       int yy = (y >> j) & 1;
       quadkey[i] = qk03[xx + (yy<<1)];
     }
-    return new String("//ecn.t3.tiles.virtualearth.net/tiles/r" + (new String(quadkey)) + ".png?g=41&productSet=mmOS");
+    return new String("//ecn." + shard_for(x, y) + ".tiles.virtualearth.net/tiles/r" + (new String(quadkey)) + ".png?g=41&productSet=mmOS");
+  }
+
+  int get_parallelism() {
+    return 4;
+  }
+
+  double get_max_rate() {
+    return 8.0;
+  }
+
+  int get_max_burst() {
+    return 8;
   }
 
 };
@@ -67,6 +67,17 @@ class Merc28 {
     Y = src.Y;
   }
 
+  // Inverse of the projection, to the centre of the 1/2**28 cell, so within
+  // about 5cm of whatever was originally projected.
+  double lat() {
+    double y = Math.PI * (1.0 - 2.0 * ((double) Y + 0.5) / scale);
+    return Math.toDegrees(Math.atan(Math.sinh(y)));
+  }
+
+  double lon() {
+    return 360.0 * ((double) X + 0.5) / scale - 180.0;
+  }
+
   static double metres_per_pixel = (25220000.0 / scale);
   static final double EARTH_RADIUS_IN_METRES = 6378140.0;
 
@@ -0,0 +1,88 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Bounded queue of log records from one producer thread to one consumer
+// thread, without locks : each side only ever writes its own index.
+// Capacity is rounded up to a power of two.
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class RecordRing<T> {
+
+  private final Object [] slots;
+  private final int mask;
+  // Next slot to read; only written by the consumer
+  private final AtomicLong head = new AtomicLong(0);
+  // Next slot to write; only written by the producer
+  private final AtomicLong tail = new AtomicLong(0);
+
+  RecordRing(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    slots = new Object[size];
+    mask = size - 1;
+  }
+
+  // Producer side.  Returns false, without waiting, if the ring is full.
+  boolean offer(T record) {
+    long t = tail.get();
+    if (t - head.get() == slots.length) {
+      return false;
+    }
+    slots[(int) t & mask] = record;
+    // Publishes the slot to the consumer
+    tail.set(t + 1);
+    return true;
+  }
+
+  // Consumer side.  Returns null if the ring is empty.
+  @SuppressWarnings("unchecked")
+  T poll() {
+    long h = head.get();
+    if (h == tail.get()) {
+      return null;
+    }
+    int i = (int) h & mask;
+    T record = (T) slots[i];
+    slots[i] = null;
+    head.set(h + 1);
+    return record;
+  }
+
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+}
+
+// vim:et:sw=2:sts=2
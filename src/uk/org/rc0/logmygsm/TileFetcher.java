@@ -0,0 +1,258 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// HTTP side of tile downloading : one client whose connections are kept
+// alive and shared between the download workers.
+//
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+class TileFetcher {
+
+  static final private int CONNECT_TIMEOUT_MS = 15000;
+  static final private int READ_TIMEOUT_MS = 30000;
+  // How long an unused connection is kept open for the next tile
+  static final private long IDLE_TIMEOUT_MS = 30000;
+
+  // Results from fetch()
+  static final int FAILED = 0;
+  static final int FETCHED = 1;
+  static final int NOT_MODIFIED = 2;
+
+  // Validators for a tile are kept in a file with this added to its name
+  static final private String VALIDATOR_SUFFIX = ".etag";
+  // A tile is downloaded into a file with this added to its name
+  static final private String PART_SUFFIX = ".part";
+
+  static final private byte [] PNG_SIGNATURE = {
+    (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+  };
+
+  private ClientConnectionManager manager;
+  private DefaultHttpClient client;
+
+  // 'per_host' limits the connections open to any one server, 'total' those
+  // open altogether.
+  TileFetcher(int per_host, int total) {
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, total);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(per_host));
+    HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+    HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    manager = new ThreadSafeClientConnManager(params, registry);
+    client = new DefaultHttpClient(manager, params);
+  }
+
+  // Fetch 'uri' into 'dest'.  If 'revalidate' is set and 'dest' exists, ask
+  // the server to send it only if it has changed since; when it hasn't, just
+  // bring its mtime up to date.  Safe to call from several threads at once.
+  int fetch(URI uri, File dest, boolean revalidate) throws IOException {
+    HttpGet get = new HttpGet(uri);
+    File validator_file = new File(dest.getPath() + VALIDATOR_SUFFIX);
+    boolean conditional = revalidate && dest.exists();
+    if (conditional) {
+      add_conditions(get, dest, validator_file);
+    }
+    try {
+      HttpResponse response = client.execute(get);
+      HttpEntity entity = response.getEntity();
+      int status = response.getStatusLine().getStatusCode();
+      if (conditional && (status == HttpStatus.SC_NOT_MODIFIED)) {
+        if (entity != null) {
+          entity.consumeContent();
+        }
+        dest.setLastModified(System.currentTimeMillis());
+        return NOT_MODIFIED;
+      }
+      if (status != HttpStatus.SC_OK) {
+        // Read the body anyway so the connection can be used again
+        if (entity != null) {
+          entity.consumeContent();
+        }
+        return FAILED;
+      }
+      // Write to one side and only rename into place once complete, so
+      // an interrupted download never leaves a truncated tile.
+      File part = new File(dest.getPath() + PART_SUFFIX);
+      OutputStream out = null;
+      try {
+        out = new BufferedOutputStream(new FileOutputStream(part));
+        entity.writeTo(out);
+      } finally {
+        if (out != null) {
+          out.close();
+        }
+      }
+      long expected = entity.getContentLength();
+      if (((expected >= 0) && (part.length() != expected)) ||
+          !is_png(part)) {
+        part.delete();
+        return FAILED;
+      }
+      if (!part.renameTo(dest)) {
+        part.delete();
+        return FAILED;
+      }
+      save_validators(response, validator_file);
+      return FETCHED;
+    } catch (IOException e) {
+      get.abort();
+      throw e;
+    } catch (RuntimeException e) {
+      get.abort();
+      throw e;
+    }
+  }
+
+  // Drop connections nobody has used for a while
+  void close_idle() {
+    manager.closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  void shutdown() {
+    manager.shutdown();
+  }
+
+  // Internal
+
+  // The validator file holds the ETag on the first line and Last-Modified on
+  // the second, either possibly empty.
+  private static void add_conditions(HttpGet get, File dest, File validator_file) {
+    String etag = null;
+    String last_modified = null;
+    if (validator_file.exists()) {
+      try {
+        BufferedReader br = new BufferedReader(new FileReader(validator_file));
+        etag = br.readLine();
+        last_modified = br.readLine();
+        br.close();
+      } catch (IOException e) {
+      }
+    }
+    if ((etag != null) && (etag.length() > 0)) {
+      get.addHeader("If-None-Match", etag);
+    }
+    if ((last_modified == null) || (last_modified.length() == 0)) {
+      // Fall back to when we last had the tile
+      last_modified = http_date(dest.lastModified());
+    }
+    get.addHeader("If-Modified-Since", last_modified);
+  }
+
+  private static void save_validators(HttpResponse response, File validator_file) {
+    Header etag = response.getFirstHeader("ETag");
+    Header last_modified = response.getFirstHeader("Last-Modified");
+    if ((etag == null) && (last_modified == null)) {
+      validator_file.delete();
+      return;
+    }
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(validator_file));
+      bw.write((etag != null) ? etag.getValue() : "");
+      bw.write("\n");
+      bw.write((last_modified != null) ? last_modified.getValue() : "");
+      bw.write("\n");
+      bw.close();
+    } catch (IOException e) {
+    }
+  }
+
+  // True if 'file' starts with the PNG signature.  Catches error pages
+  // served with a 200 as well as empty files.
+  private static boolean is_png(File file) {
+    byte [] head = new byte[PNG_SIGNATURE.length];
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int n = 0;
+      while (n < head.length) {
+        int got = in.read(head, n, head.length - n);
+        if (got < 0) {
+          return false;
+        }
+        n += got;
+      }
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+    for (int i = 0; i < head.length; i++) {
+      if (head[i] != PNG_SIGNATURE[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String http_date(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(millis));
+  }
+
+}
+
+// vim:et:sw=2:sts=2
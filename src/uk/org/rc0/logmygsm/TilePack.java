@@ -0,0 +1,285 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// A whole tile directory tree for one map source packed into a single file,
+// so that loading a tile costs a binary search in memory rather than
+// directory lookups on a FAT SD card.
+//
+// Layout (big-endian) :
+//   header : magic, version, number of tiles, 0            4 ints
+//   index  : key, offset, length for each tile            16 bytes each
+//   data   : the tile images, back to back
+// The index is sorted by key (see pack_key()) and offsets are from the start
+// of the file.  The file is read through a read-only memory map, so it has
+// to be under 2GB.
+//
+// Build one on a desktop machine from the usual layout with
+//   java uk.org.rc0.logmygsm.TilePack <tile directory> <pack file>
+// and copy it to MapSource.get_pack_path().  Remove the loose tile directory
+// as well to have the source read from the pack alone (see
+// MapSource.reads_from_pack()).
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+class TilePack {
+
+  static final private int MAGIC = 0x4c4d5450; // "LMTP"
+  static final private int VERSION = 1;
+  static final private int HEADER_BYTES = 16;
+  static final private int ENTRY_BYTES = 16;
+  static final private String TILE_SUFFIX = ".png.tile";
+
+  private ByteBuffer map;
+  private int n_tiles;
+
+  // Each reader thread copies tiles out into its own buffer
+  static private final ThreadLocal<byte []> scratch = new ThreadLocal<byte []> () {
+    @Override
+    protected byte [] initialValue() {
+      return new byte[32*1024];
+    }
+  };
+
+  TilePack(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if ((size < HEADER_BYTES) || (size > Integer.MAX_VALUE)) {
+        throw new IOException("Bad tile pack size " + size);
+      }
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      // The mapping stays valid after the file is closed
+      raf.close();
+    }
+    if ((map.getInt(0) != MAGIC) || (map.getInt(4) != VERSION)) {
+      throw new IOException("Not a tile pack : " + file.getPath());
+    }
+    n_tiles = map.getInt(8);
+    if ((long) HEADER_BYTES + (long) n_tiles * ENTRY_BYTES > map.capacity()) {
+      throw new IOException("Truncated tile pack : " + file.getPath());
+    }
+  }
+
+  static long pack_key(int zoom, int x, int y) {
+    return ((long) zoom << 48) | ((long) x << 24) | (long) y;
+  }
+
+  int size() {
+    return n_tiles;
+  }
+
+  boolean contains(int zoom, int x, int y) {
+    return find(pack_key(zoom, x, y)) >= 0;
+  }
+
+  // A tile's image as the first 'length' bytes of a per-thread buffer, or
+  // null if the pack doesn't have it.  The buffer is only valid until the
+  // same thread calls this again.
+  static class Blob {
+    byte [] data;
+    int length;
+  }
+
+  Blob get(int zoom, int x, int y) {
+    int i = find(pack_key(zoom, x, y));
+    if (i < 0) {
+      return null;
+    }
+    int entry = HEADER_BYTES + i * ENTRY_BYTES;
+    int offset = map.getInt(entry + 8);
+    int length = map.getInt(entry + 12);
+    if ((offset < 0) || (length < 0) || ((long) offset + length > map.capacity())) {
+      return null;
+    }
+    byte [] buf = scratch.get();
+    if (buf.length < length) {
+      buf = new byte[length];
+      scratch.set(buf);
+    }
+    // Absolute reads on a duplicate, so threads don't share a position
+    ByteBuffer view = map.duplicate();
+    view.position(offset);
+    view.get(buf, 0, length);
+    Blob result = new Blob();
+    result.data = buf;
+    result.length = length;
+    return result;
+  }
+
+  // Internal
+
+  // Index of the entry with 'key', or -1
+  private int find(long key) {
+    int lo = 0;
+    int hi = n_tiles - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long k = map.getLong(HEADER_BYTES + mid * ENTRY_BYTES);
+      if (k < key) {
+        lo = mid + 1;
+      } else if (k > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // -----------
+  // Importer
+
+  static private class Source {
+    long key;
+    File file;
+
+    Source(long _key, File _file) {
+      key = _key;
+      file = _file;
+    }
+  }
+
+  // Pack every <zoom>/<x>/<y>.png.tile under 'dir' into 'pack'.  Returns the
+  // number of tiles packed.
+  static int build(File dir, File pack) throws IOException {
+    ArrayList<Source> sources = new ArrayList<Source> ();
+    String [] zooms = dir.list();
+    if (zooms == null) {
+      throw new IOException("Cannot list " + dir.getPath());
+    }
+    for (String zs : zooms) {
+      int zoom = parse(zs);
+      File zdir = new File(dir, zs);
+      String [] xs = zdir.list();
+      if ((zoom < 0) || (xs == null)) {
+        continue;
+      }
+      for (String xn : xs) {
+        int x = parse(xn);
+        File xdir = new File(zdir, xn);
+        String [] ys = xdir.list();
+        if ((x < 0) || (ys == null)) {
+          continue;
+        }
+        for (String yn : ys) {
+          if (!yn.endsWith(TILE_SUFFIX)) {
+            continue;
+          }
+          int y = parse(yn.substring(0, yn.length() - TILE_SUFFIX.length()));
+          if (y >= 0) {
+            sources.add(new Source(pack_key(zoom, x, y), new File(xdir, yn)));
+          }
+        }
+      }
+    }
+    Collections.sort(sources, new Comparator<Source> () {
+      public int compare(Source a, Source b) {
+        return (a.key < b.key) ? -1 : ((a.key > b.key) ? 1 : 0);
+      }
+    });
+
+    int n = sources.size();
+    long offset = HEADER_BYTES + (long) n * ENTRY_BYTES;
+    File part = new File(pack.getPath() + ".part");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(part)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(n);
+      out.writeInt(0);
+      for (Source source : sources) {
+        long length = source.file.length();
+        if (offset + length > Integer.MAX_VALUE) {
+          throw new IOException("Tile pack would exceed 2GB");
+        }
+        out.writeLong(source.key);
+        out.writeInt((int) offset);
+        out.writeInt((int) length);
+        offset += length;
+      }
+      byte [] buf = new byte[64*1024];
+      for (Source source : sources) {
+        // The index above has already recorded this length
+        long expected = source.file.length();
+        InputStream in = new FileInputStream(source.file);
+        try {
+          long copied = 0;
+          int got;
+          while ((got = in.read(buf)) > 0) {
+            out.write(buf, 0, got);
+            copied += got;
+          }
+          if (copied != expected) {
+            throw new IOException("Tile changed while packing : " + source.file.getPath());
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!part.renameTo(pack)) {
+      throw new IOException("Cannot rename " + part.getPath());
+    }
+    return n;
+  }
+
+  static private int parse(String s) {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public static void main(String [] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage : TilePack <tile directory> <pack file>");
+      System.exit(1);
+    }
+    int n = build(new File(args[0]), new File(args[1]));
+    System.out.println("Packed " + n + " tiles");
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,136 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Which tiles are on disk, so that looking up a missing tile doesn't need a
+// stat() on the SD card each time.  Each zoom/x directory of a map source is
+// listed the first time a tile in it is wanted; after that the downloader
+// and quarantine keep the index up to date.  Also records which tiles have
+// been fetched or revalidated during this run, which used to be found from
+// the file's mtime.
+
+import java.io.File;
+
+class TilePresence {
+
+  static final private String TILE_SUFFIX = ".png.tile";
+
+  // The y values present in one zoom/x directory
+  static private class Column {
+    LongMap<Boolean> ys;
+
+    Column() {
+      ys = new LongMap<Boolean> ();
+    }
+  }
+
+  // Keyed by TileStore.make_key() with y = 0
+  static private LongMap<Column> columns = new LongMap<Column> ();
+  // Tiles fetched or revalidated this run
+  static private LongMap<Boolean> fresh = new LongMap<Boolean> ();
+
+  static boolean exists(TileStore.TilePos pos) {
+    Column column = get_column(pos);
+    synchronized (TilePresence.class) {
+      // fresh covers a download that lands while the column is being listed
+      return column.ys.contains(pos.y) || fresh.contains(pos.key());
+    }
+  }
+
+  static synchronized boolean is_fresh(TileStore.TilePos pos) {
+    return fresh.contains(pos.key());
+  }
+
+  // A tile has been written (or confirmed current) by the downloader.  A
+  // column that hasn't been listed yet is left alone : the listing will see
+  // the file.
+  static synchronized void added(TileStore.TilePos pos) {
+    Column column = columns.get(column_key(pos));
+    if (column != null) {
+      column.ys.put(pos.y, Boolean.TRUE);
+    }
+    fresh.put(pos.key(), Boolean.TRUE);
+  }
+
+  // A tile file has been removed
+  static synchronized void removed(TileStore.TilePos pos) {
+    Column column = columns.get(column_key(pos));
+    if (column != null) {
+      column.ys.remove(pos.y);
+    }
+    fresh.remove(pos.key());
+  }
+
+  // Forget the directory listings, e.g. to save memory.  They are read
+  // again as needed.
+  static synchronized void clear() {
+    columns.clear();
+  }
+
+  // Internal
+
+  static private long column_key(TileStore.TilePos pos) {
+    return TileStore.make_key(pos.zoom, pos.x, 0, pos.map_source);
+  }
+
+  static private Column get_column(TileStore.TilePos pos) {
+    long key = column_key(pos);
+    Column column;
+    synchronized (TilePresence.class) {
+      column = columns.get(key);
+    }
+    if (column != null) {
+      return column;
+    }
+    // List the directory without holding the lock
+    Column listed = new Column();
+    File dir = new File(pos.map_source.get_tile_path(pos.zoom, pos.x, 0)).getParentFile();
+    String [] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(TILE_SUFFIX)) {
+          try {
+            int y = Integer.parseInt(name.substring(0, name.length() - TILE_SUFFIX.length()));
+            listed.ys.put(y, Boolean.TRUE);
+          } catch (NumberFormatException e) {
+          }
+        }
+      }
+    }
+    synchronized (TilePresence.class) {
+      // Another thread may have got here first
+      column = columns.get(key);
+      if (column == null) {
+        column = listed;
+        columns.put(key, column);
+      }
+    }
+    return column;
+  }
+
+}
+
+// vim:et:sw=2:sts=2
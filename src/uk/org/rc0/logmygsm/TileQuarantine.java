@@ -0,0 +1,82 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Tile files that exist but won't decode (e.g. truncated by an interrupted
+// download before writes were made atomic).  Rather than trying to decode
+// them again every time they come into view, they are moved aside to
+// '<tile>.bad' and downloaded again.  The index counts the attempts per tile
+// so that a server sending junk can't cause an endless loop of fetches.
+
+import android.util.Log;
+import java.io.File;
+import java.util.LinkedList;
+
+class TileQuarantine {
+
+  // Times a tile is fetched again after failing to decode
+  static final private int MAX_REFETCH = 2;
+
+  static final private String BAD_SUFFIX = ".bad";
+  static final private String TAG = "TileQuarantine";
+
+  static private LongMap<int[]> index = new LongMap<int[]> ();
+
+  // Called from the decoder threads when 'file', holding the tile at 'pos',
+  // has failed to decode.
+  static void add(TileStore.TilePos pos, File file) {
+    int count;
+    synchronized (TileQuarantine.class) {
+      long key = pos.key();
+      int [] entry = index.get(key);
+      if (entry == null) {
+        entry = new int[1];
+        index.put(key, entry);
+      }
+      count = ++entry[0];
+    }
+    Log.w(TAG, "Quarantining " + file.getPath());
+    File bad = new File(file.getPath() + BAD_SUFFIX);
+    bad.delete();
+    if (!file.renameTo(bad)) {
+      file.delete();
+    }
+    TilePresence.removed(pos);
+    if ((count <= MAX_REFETCH) &&
+        (pos.map_source.get_download_url(pos.zoom, pos.x, pos.y) != null)) {
+      LinkedList<TileStore.TilePos> targets = new LinkedList<TileStore.TilePos> ();
+      targets.add(new TileStore.TilePos(pos));
+      Downloader.enqueue(targets);
+    }
+  }
+
+  static synchronized int size() {
+    return index.size();
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -32,13 +32,21 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Color;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.util.Log;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.lang.Runnable;
 import java.util.LinkedList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class TileStore {
 
@@ -82,50 +90,166 @@ class TileStore {
       }
     }
 
+    long key() {
+      return make_key(zoom, x, y, map_source);
+    }
+
   };
 
+  // Pack a tile position into a long for use as a hash key.  x and y are < 2^zoom,
+  // and zoom never exceeds 18, so 24 bits each is ample.
+  //   bits 63..56 : map source code
+  //   bits 55..48 : zoom
+  //   bits 47..24 : x
+  //   bits 23..0  : y
+  static final private int KEY_XY_BITS = 24;
+  static final private long KEY_XY_MASK = (1L << KEY_XY_BITS) - 1;
+
+  static long make_key(int zoom, int x, int y, MapSource map_source) {
+    return ((long) map_source.get_code() << 56) |
+      ((long) zoom << (KEY_XY_BITS << 1)) |
+      (((long) x & KEY_XY_MASK) << KEY_XY_BITS) |
+      ((long) y & KEY_XY_MASK);
+  }
+
+  // Inverse of make_key(), or null if the map source no longer exists
+  static TilePos decode_key(long key) {
+    MapSource map_source = MapSources.lookup((int) (key >>> 56));
+    if (map_source == null) {
+      return null;
+    }
+    int zoom = (int) ((key >>> (KEY_XY_BITS << 1)) & 0xff);
+    int x = (int) ((key >>> KEY_XY_BITS) & KEY_XY_MASK);
+    int y = (int) (key & KEY_XY_MASK);
+    return new TilePos(zoom, x, y, map_source);
+  }
+
+  // Transparent overlay holding the trail dots for one tile, composited over
+  // the map when drawing.  The bitmap is only allocated once a dot actually
+  // lands on the tile, so most tiles away from the trail cost nothing extra.
+  static class TrailLayer {
+    Bitmap bm;
+    private Canvas canvas;
+    // How many points of the trail render_old_trail() covered
+    int n_rendered;
+
+    Canvas get_canvas() {
+      if (bm == null) {
+        bm = BitmapPool.obtain(bm_size, bm_size, Bitmap.Config.ARGB_8888);
+        bm.eraseColor(Color.TRANSPARENT);
+        canvas = new Canvas(bm);
+      }
+      return canvas;
+    }
+
+    int n_bytes() {
+      return (bm != null) ? bitmap_bytes(bm) : 0;
+    }
+
+    void release() {
+      BitmapPool.release(bm);
+      bm = null;
+      canvas = null;
+    }
+  }
+
   private static class Entry extends TilePos {
+    long key;
     int pixel_shift;
     int tile_shift;
     int cycle;
     private Trail.Upto upto;
+    private TrailLayer trail;
+    // False if the historical trail needs rendering into 'trail' again
+    private boolean trail_valid;
     boolean is_dummy;
+    // Set if the tile file was written since we started, e.g. by a download
+    boolean is_fresh;
     Bitmap b;
+    int n_bytes;
+    // Links in the LRU list, most recently used at lru_head
+    Entry lru_prev;
+    Entry lru_next;
 
     Bitmap getBitmap() {
       return b;
     }
 
-    Entry(int _zoom, MapSource _map_source, int _x, int _y, Bitmap _b, boolean _is_dummy) {
+    Entry(int _zoom, MapSource _map_source, int _x, int _y, Bitmap _b, TrailLayer _trail, boolean _is_dummy, boolean _is_fresh) {
       super(_zoom, _x, _y, _map_source);
+      key = key();
       pixel_shift = (Merc28.shift - (zoom + bm_log_size));
       tile_shift = (Merc28.shift - zoom);
       b = _b;
+      trail = _trail;
+      trail_valid = true;
       is_dummy = _is_dummy;
+      is_fresh = _is_fresh;
+      // Dummies share one bitmap, so only count their trail
+      n_bytes = (is_dummy ? 0 : bitmap_bytes(b)) + trail.n_bytes();
+      upto = new Trail.Upto (trail.n_rendered);
+      cycle = draw_cycle;
+    }
+
+    // Re-account after the trail layer has been allocated or freed
+    void update_bytes() {
+      int new_bytes = (is_dummy ? 0 : bitmap_bytes(b)) + trail.n_bytes();
+      total_bytes += (new_bytes - n_bytes);
+      n_bytes = new_bytes;
+    }
+
+    void reset_trail() {
+      trail.release();
       upto = new Trail.Upto ();
-      touch();
+      trail_valid = false;
+      update_bytes();
     }
 
     void touch () {
       cycle = draw_cycle;
+      if (lru_head != this) {
+        lru_unlink(this);
+        lru_push(this);
+      }
     }
 
     void add_recent_trail() {
-      Canvas my_canv = new Canvas(b);
-      Logger.mTrail.draw_recent_trail(my_canv,
+      boolean had_layer = (trail.bm != null);
+      if (!trail_valid) {
+        render_old_trail(trail, zoom, x, y);
+        upto = new Trail.Upto (trail.n_rendered);
+        trail_valid = true;
+      }
+      Logger.mTrail.draw_recent_trail(trail,
           x<<tile_shift, y<<tile_shift,
           pixel_shift, upto);
+      if (had_layer != (trail.bm != null)) {
+        update_bytes();
+      }
     }
   }
 
-  static private int last_w, last_h;
-  static private Entry [] front;
-  static private int next;
-  static private Entry [] back;
+  static private LongMap<Entry> cache;
+  static private Entry lru_head;
+  static private Entry lru_tail;
   static int draw_cycle;
 
+  // Memory held by the decoded bitmaps in the cache, and the limit on it.
+  // The limit is a fraction of the heap the VM will let us have.
+  static private long total_bytes;
+  static private long budget_bytes;
+  static final private float DEFAULT_BUDGET_FRACTION = 0.25f;
+  // Fraction of the budget kept while the map activities are paused
+  static final float TRIM_PAUSED = 0.5f;
+
+  // Cache effectiveness, counted per tile lookup in draw()
+  static private long n_hits;
+  static private long n_misses;
+
   static private Paint gray_paint;
   static private Paint light_gray_paint;
+  // For drawing part of an ancestor tile scaled up
+  static private Paint scale_paint;
   static Paint trail_paint;
   static Paint trail_dot_paint_0;
   static Paint trail_dot_paint_1;
@@ -133,8 +257,25 @@ class TileStore {
 
   static private Handler mHandler;
 
-  static private LinkedList<TilePos> bg_queue;
+  // Tiles being decoded in the background, by key.  Only touched on the UI
+  // thread.
+  static private LongMap<TilingJob> pending;
+  static private ThreadPoolExecutor pool;
+  static private long job_sequence;
+  // Bumped by invalidate() so that decodes started before it get dropped
+  static private int generation;
+  // Bumped by invalidate_trail() so that trail layers rendered before it get dropped
+  static private int trail_generation;
   static private Bitmap loading_bitmap;
+  // Shared by all the tiles that aren't on the SD card
+  static private Bitmap dummy_bitmap;
+  // Map tiles are opaque, so on small heaps they can be held at 16 bits per
+  // pixel.  The translucent overlays are composited when drawing.
+  static volatile private Bitmap.Config tile_config;
+  static final private long LOW_MEMORY_HEAP = 32 * 1024 * 1024;
+  // The user's choice, if they have made one.  Kept apart from the map
+  // activities' own files, as both of those would save it.
+  static final private String COLOUR_PREFS_FILE = "tile_colour.txt";
   static private Context mContext;
 
   static private long start_time;
@@ -143,14 +284,15 @@ class TileStore {
 
   // -----------
 
-  static Entry [] new_cache() {
-    int ww = (last_w >> 8) + 2;
-    int hh = (last_h >> 8) + 2;
-    int tt = ww * hh;
-    // oversize by 50% to give a little pan space around edges
-    tt += (tt >> 1);
-    if (do_log) { Log.i(TAG, "New cache w=" + ww + " h=" + hh + " tt=" + tt); }
-    return new Entry[tt];
+  static private int bitmap_bytes(Bitmap bm) {
+    // getByteCount() isn't available before API 12
+    return bm.getRowBytes() * bm.getHeight();
+  }
+
+  static void set_budget_fraction(float fraction) {
+    budget_bytes = (long)(fraction * (float) Runtime.getRuntime().maxMemory());
+    if (do_log) { Log.i(TAG, "Tile cache budget " + budget_bytes + " bytes"); }
+    evict_to(budget_bytes, false);
   }
 
   static void init (Context the_app_context) {
@@ -158,11 +300,13 @@ class TileStore {
     start_time = System.currentTimeMillis();
 
     mContext = the_app_context;
-    last_w = 240;
-    last_h = 400;
-    front = new_cache();
-    next = 0;
-    back = null;
+    cache = new LongMap<Entry> ();
+    lru_head = null;
+    lru_tail = null;
+    total_bytes = 0;
+    set_budget_fraction(DEFAULT_BUDGET_FRACTION);
+    n_hits = 0;
+    n_misses = 0;
 
     draw_cycle = 0;
 
@@ -170,6 +314,7 @@ class TileStore {
     gray_paint.setColor(Color.GRAY);
     light_gray_paint = new Paint();
     light_gray_paint.setColor(Color.argb(255, 0xa0, 0xa0, 0xa0));
+    scale_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
     trail_paint = new Paint();
     trail_paint.setColor(Color.argb(56, 0x6d, 0, 0xb0));
     trail_paint.setStyle(Paint.Style.FILL);
@@ -187,40 +332,89 @@ class TileStore {
     highlight_border_paint.setStrokeCap(Paint.Cap.SQUARE);
 
     mHandler = new Handler();
-    bg_queue = new LinkedList<TilePos> ();
+    pending = new LongMap<TilingJob> ();
+    job_sequence = 0;
+    generation = 0;
+    trail_generation = 0;
+    int n_threads = Runtime.getRuntime().availableProcessors();
+    pool = new ThreadPoolExecutor(n_threads, n_threads,
+        0L, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<Runnable> (),
+        new ThreadFactory () {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TileDecode");
+            // Leave the UI thread ahead of us
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+          }
+        });
+
+    if (Runtime.getRuntime().maxMemory() <= LOW_MEMORY_HEAP) {
+      tile_config = Bitmap.Config.RGB_565;
+    } else {
+      tile_config = Bitmap.Config.ARGB_8888;
+    }
+    restore_colour_mode();
+    make_loading_bitmap();
+  }
 
-    loading_bitmap = Bitmap.createBitmap(bm_size, bm_size, Bitmap.Config.ARGB_8888);
+  static private void make_loading_bitmap() {
+    loading_bitmap = Bitmap.createBitmap(bm_size, bm_size, tile_config);
     Canvas my_canv = new Canvas(loading_bitmap);
     my_canv.drawRect(0, 0, bm_size, bm_size, gray_paint);
     my_canv.drawRect(bm_size>>3, bm_size>>3,
         bm_size - (bm_size>>3), bm_size - (bm_size>>3),
         light_gray_paint);
+    // Immutable, so that it never goes into the bitmap pool
+    Bitmap temp_bm = Bitmap.createBitmap(bm_size, bm_size, tile_config);
+    temp_bm.eraseColor(Color.GRAY);
+    dummy_bitmap = temp_bm.copy(tile_config, false);
+    temp_bm.recycle();
   }
 
   // -----------
 
   private static class TilingResponse implements Runnable {
+    private TilingJob job;
     private Bitmap bm;
+    private TrailLayer trail;
     private boolean is_dummy;
+    private boolean is_fresh;
 
-    public TilingResponse(Bitmap _bm, boolean _is_dummy) {
+    public TilingResponse(TilingJob _job, Bitmap _bm, TrailLayer _trail, boolean _is_dummy, boolean _is_fresh) {
+      job = _job;
       bm = _bm;
+      trail = _trail;
       is_dummy = _is_dummy;
+      is_fresh = _is_fresh;
     }
 
     @Override
     public void run() {
-      check_full();
-      TilePos tp = bg_queue.remove(); // head of list
-      Entry e = make_entry(tp.zoom, tp.map_source, tp.x, tp.y, bm, is_dummy);
-      if (do_log) { Log.i(TAG, "Putting load response at position " + next); }
-      front[next++] = e;
-
-      if (bg_queue.size() > 0) {
-        tp = bg_queue.getFirst();
-        if (do_log) { Log.i(TAG, "Start next job, queue size is " + bg_queue.size()); }
-        (new TilingThread(tp.zoom, tp.x, tp.y, tp.map_source)).start();
-      } else {
+      if (pending.get(job.key) == job) {
+        pending.remove(job.key);
+      }
+      if ((job.generation != generation) || job.superseded) {
+        // Cache or tile was invalidated while we were decoding : the result may be stale
+        BitmapPool.release(bm);
+        trail.release();
+        return;
+      }
+      // Keep the result even if the job was cancelled after it started - the
+      // work has been done, and the tile may well be panned back into view.
+      boolean stale_trail = (job.trail_generation != trail_generation);
+      if (stale_trail) {
+        // Free the layer before the entry counts its bytes, as the entry
+        // isn't in total_bytes yet
+        trail.release();
+      }
+      Entry e = make_entry(job.zoom, job.map_source, job.x, job.y, bm, trail, is_dummy, is_fresh);
+      if (stale_trail) {
+        e.reset_trail();
+      }
+      insert(e);
+
+      if (pending.size() == 0) {
         // Last job done.  Force map redraw
         Intent intent = new Intent(Logger.UPDATE_GPS);
         mContext.sendBroadcast(intent);
@@ -228,23 +422,48 @@ class TileStore {
     }
   }
 
-  private static class TilingThread extends Thread {
-    private int zoom;
-    private int x;
-    private int y;
-    private MapSource map_source;
+  // Jobs are run by the pool in order of distance from the centre of the
+  // screen, so that the tiles the user is looking at fill in first.
+  private static class TilingJob extends TilePos implements Runnable, Comparable<TilingJob> {
+    long key;
+    int priority;
+    long sequence;
+    int generation;
+    int trail_generation;
+    // The last draw() that wanted this tile
+    int cycle;
+    volatile boolean cancelled;
+    // The tile file has been replaced since this job was started
+    boolean superseded;
 
-    public TilingThread(int _zoom, int _x, int _y, MapSource _map_source) {
-      zoom = _zoom;
-      x = _x;
-      y = _y;
-      map_source = _map_source;
-      //setPriority(Thread.MIN_PRIORITY);
+    TilingJob(int _zoom, int _x, int _y, MapSource _map_source, int _priority) {
+      super(_zoom, _x, _y, _map_source);
+      key = key();
+      priority = _priority;
+      sequence = job_sequence++;
+      generation = TileStore.generation;
+      trail_generation = TileStore.trail_generation;
+      cycle = draw_cycle;
+      cancelled = false;
+      superseded = false;
+    }
+
+    public int compareTo(TilingJob other) {
+      if (priority != other.priority) {
+        return (priority < other.priority) ? -1 : 1;
+      } else if (sequence != other.sequence) {
+        return (sequence < other.sequence) ? -1 : 1;
+      } else {
+        return 0;
+      }
     }
 
     @Override
     public void run () {
-      TilingResponse resp = render_bitmap(zoom, map_source, x, y);
+      if (cancelled) {
+        return;
+      }
+      TilingResponse resp = render_bitmap(this);
       mHandler.post (resp);
       resp = null;
     }
@@ -263,27 +482,36 @@ class TileStore {
     }
   }
 
-  static private void render_old_trail(Bitmap bm, int zoom, int tile_x, int tile_y) {
+  static private void render_old_trail(TrailLayer layer, int zoom, int tile_x, int tile_y) {
     int pixel_shift = (Merc28.shift - (zoom + bm_log_size));
     int tile_shift = (Merc28.shift - zoom);
     int xnw = tile_x << tile_shift;
     int ynw = tile_y << tile_shift;
     int parity = 0;
-    Canvas my_canv = new Canvas(bm);
-    Trail.PointArray pa = Logger.mTrail.get_historical();
+    // Only the points that could put a splot on this tile
+    int margin = ((int) Trail.splot_radius + 1) << pixel_shift;
+    int size = 1 << tile_shift;
+    Trail.PointArray pa = Logger.mTrail.get_historical_near(zoom,
+        xnw - margin, ynw - margin,
+        xnw + size + margin, ynw + size + margin);
+    layer.n_rendered = pa.n_total;
     int last_x = 0, last_y = 0;
     for (int i = 0; i < pa.n; i++) {
       int px = (pa.x[i] - xnw) >> pixel_shift;
       int py = (pa.y[i] - ynw) >> pixel_shift;
       boolean do_add = true;
-      if (i > 0) {
+      // Where the trail has left the tile and come back, start afresh
+      if (!pa.is_break(i)) {
         int manhattan = Math.abs(px - last_x) + Math.abs(py - last_y);
         if (manhattan < Trail.splot_gap) {
           do_add = false;
         }
       }
       if (do_add) {
-        render_dot(my_canv, px, py, parity);
+        if ((px >= Trail.MIN_CENTRE) && (py >= Trail.MIN_CENTRE) &&
+            (px < Trail.MAX_CENTRE) && (py < Trail.MAX_CENTRE)) {
+          render_dot(layer.get_canvas(), px, py, parity);
+        }
         parity = parity ^ 1;
         last_x = px;
         last_y = py;
@@ -291,116 +519,219 @@ class TileStore {
     }
   }
 
-  static private void render_highlight_border(Bitmap bm)
+  // Drawn over the tile on the screen, rather than into it, so that it
+  // stays translucent whatever the tile's bitmap config
+  static private void render_highlight_border(Canvas c, int xx, int yy)
   {
-    Canvas my_canv = new Canvas(bm);
     int hw, hw2;
     hw = HIGHLIGHT_WIDTH - (HIGHLIGHT_WIDTH>>2);
-    hw2 = 256 - hw;
-    my_canv.drawLine(hw, hw, hw2, hw, highlight_border_paint);
-    my_canv.drawLine(hw, hw2, hw2, hw2, highlight_border_paint);
-    my_canv.drawLine(hw, hw, hw, hw2, highlight_border_paint);
-    my_canv.drawLine(hw2, hw, hw2, hw2, highlight_border_paint);
+    hw2 = bm_size - hw;
+    c.drawLine(xx+hw, yy+hw, xx+hw2, yy+hw, highlight_border_paint);
+    c.drawLine(xx+hw, yy+hw2, xx+hw2, yy+hw2, highlight_border_paint);
+    c.drawLine(xx+hw, yy+hw, xx+hw, yy+hw2, highlight_border_paint);
+    c.drawLine(xx+hw2, yy+hw, xx+hw2, yy+hw2, highlight_border_paint);
   }
 
-  static private TilingResponse render_bitmap(int zoom, MapSource map_source, int x, int y) {
+  static private TilingResponse render_bitmap(TilingJob job) {
+    int zoom = job.zoom;
+    int x = job.x;
+    int y = job.y;
+    MapSource map_source = job.map_source;
     String filename = null;
     filename = map_source.get_tile_path(zoom, x, y);
     File file = new File(filename);
     Bitmap bm = null;
     boolean is_dummy = false;
+    boolean is_fresh = false;
+    Bitmap.Config config = tile_config;
+    // A packed source only has loose files for tiles downloaded this run
+    boolean present = map_source.reads_from_pack() ?
+      TilePresence.is_fresh(job) : TilePresence.exists(job);
     try {
-      if (file.exists()) {
-        Bitmap temp_bm = BitmapFactory.decodeFile(filename);
-        bm = temp_bm.copy(Bitmap.Config.ARGB_8888, true);
+      if (present) {
+        bm = BitmapPool.decode_file(filename, bm_size, bm_size, config);
 
-        if (file.lastModified() > start_time) {
-          render_highlight_border(bm);
+        if ((bm != null) && TilePresence.is_fresh(job)) {
+          is_fresh = true;
+        }
+      } else {
+        // Loose files win, as they may have been downloaded since the pack
+        // was built
+        TilePack pack = map_source.get_pack();
+        TilePack.Blob blob = (pack != null) ? pack.get(zoom, x, y) : null;
+        if (blob != null) {
+          bm = BitmapPool.decode_bytes(blob.data, blob.length, bm_size, bm_size, config);
         }
       }
     } catch (Exception e) {
       // to deal with corrupt tile files and such horrors
     }
+    if ((bm == null) && present && file.exists()) {
+      if (map_source.get_download_url(zoom, x, y) != null) {
+        // Move it aside so the next load doesn't try again, and fetch afresh
+        TileQuarantine.add(job, file);
+      } else {
+        // Nowhere to get another copy from (e.g. coverage tiles made from
+        // the logs), so leave it be
+        Log.w(TAG, "Could not decode " + filename);
+      }
+    }
     if (bm == null) {
-      bm = Bitmap.createBitmap(bm_size, bm_size, Bitmap.Config.ARGB_8888);
-      Canvas my_canv = new Canvas(bm);
-      my_canv.drawRect(0, 0, bm_size, bm_size, gray_paint);
+      bm = dummy_bitmap;
       is_dummy = true;
     }
-    // TODO : Draw trail points into the bitmap
-    render_old_trail(bm, zoom, x, y);
-    return new TilingResponse(bm, is_dummy);
+    TrailLayer trail = new TrailLayer();
+    render_old_trail(trail, zoom, x, y);
+    return new TilingResponse(job, bm, trail, is_dummy, is_fresh);
   }
 
-  static private void start_bg_load(int zoom, int x, int y, MapSource map_source) {
-    // Check if this job is already on the queue
-    int i;
-    for (i=0; i<bg_queue.size(); i++) {
-      if (bg_queue.get(i).isMatch(zoom, x, y, map_source)) {
-        return;
+  // How many zoom levels up to look for a placeholder
+  static final private int MAX_ANCESTOR_LEVELS = 4;
+  // The part of the tile returned by find_ancestor() that covers the tile
+  // asked about.  Only used on the UI thread.
+  static private Rect ancestor_src = new Rect();
+
+  // The nearest real (not dummy) tile already in the cache that covers the
+  // tile at zoom/x/y, or null.  Doesn't start any loads or count as a lookup.
+  static private Entry find_ancestor(int zoom, MapSource map_source, int x, int y) {
+    for (int d = 1; (d <= MAX_ANCESTOR_LEVELS) && (d <= zoom); d++) {
+      Entry a = cache.get(make_key(zoom - d, x >> d, y >> d, map_source));
+      if ((a != null) && !a.is_dummy) {
+        int size = bm_size >> d;
+        int mask = (1 << d) - 1;
+        int sx = (x & mask) * size;
+        int sy = (y & mask) * size;
+        ancestor_src.set(sx, sy, sx + size, sy + size);
+        return a;
       }
     }
-    // Not already in the queue of tiles to render.  Let's go....
-    bg_queue.add(new TilePos(zoom, x, y, map_source));
-    if (bg_queue.size() == 1) {
-      // We've just queued the 1st piece of work: kick off the bg stuff
-      if (do_log) { Log.i(TAG, "Starting first bg load op"); }
-      (new TilingThread(zoom, x, y, map_source)).start();
+    return null;
+  }
+
+  static private void start_bg_load(int zoom, int x, int y, MapSource map_source, int priority) {
+    long key = make_key(zoom, x, y, map_source);
+    TilingJob job = pending.get(key);
+    if (job != null) {
+      // Already queued or running : note that it's still wanted, and move it
+      // if it's now more or less urgent.  The queue is a heap, so the job has
+      // to come out while its priority changes.
+      job.cycle = draw_cycle;
+      if ((job.priority != priority) && pool.remove(job)) {
+        job.priority = priority;
+        pool.execute(job);
+      }
+      return;
+    }
+    job = new TilingJob(zoom, x, y, map_source, priority);
+    pending.put(key, job);
+    pool.execute(job);
+  }
+
+  // Drop queued jobs for tiles that the last draw() didn't ask for, e.g.
+  // because the map has been panned or zoomed away from them.
+  static private void cancel_unwanted() {
+    TilingJob [] victims = null;
+    int n_victims = 0;
+    int cap = pending.capacity();
+    for (int i=0; i<cap; i++) {
+      TilingJob job = pending.value_at(i);
+      if ((job != null) && (job.cycle != draw_cycle)) {
+        if (victims == null) {
+          victims = new TilingJob[pending.size()];
+        }
+        victims[n_victims++] = job;
+      }
     }
+    for (int i=0; i<n_victims; i++) {
+      victims[i].cancelled = true;
+      pool.remove(victims[i]);
+      pending.remove(victims[i].key);
+    }
+    if (do_log && (n_victims > 0)) { Log.i(TAG, "Cancelled " + n_victims + " tile decodes"); }
   }
 
-  static private Entry make_entry(int zoom, MapSource map_source, int x, int y, Bitmap b, boolean is_dummy) {
-    return new Entry(zoom, map_source, x, y, b, is_dummy);
+  static private Entry make_entry(int zoom, MapSource map_source, int x, int y, Bitmap b, TrailLayer trail, boolean is_dummy, boolean is_fresh) {
+    return new Entry(zoom, map_source, x, y, b, trail, is_dummy, is_fresh);
   }
 
-  static private void check_full () {
-    if (next == front.length) {
-      back = front;
-      front = new_cache();
-      next = 0;
-      if (do_log) { Log.i(TAG, "Flushed tile store"); }
+  static private void lru_unlink(Entry e) {
+    if (e.lru_prev != null) {
+      e.lru_prev.lru_next = e.lru_next;
+    } else {
+      lru_head = e.lru_next;
     }
+    if (e.lru_next != null) {
+      e.lru_next.lru_prev = e.lru_prev;
+    } else {
+      lru_tail = e.lru_prev;
+    }
+    e.lru_prev = null;
+    e.lru_next = null;
   }
 
-  static private Entry lookup(int zoom, MapSource map_source, int x, int y) {
-    // front should never be null
-    for (int i=next-1; i>=0; i--) {
-      if (front[i].isMatch(zoom, x, y, map_source)) {
-        return front[i];
-      }
+  static private void lru_push(Entry e) {
+    e.lru_prev = null;
+    e.lru_next = lru_head;
+    if (lru_head != null) {
+      lru_head.lru_prev = e;
+    } else {
+      lru_tail = e;
     }
-    // Miss. Match in back?
-    Entry back_match = null;
-    if (back != null) {
-      for (int i=back.length-1; i>=0; i--) {
-        if (back[i].isMatch(zoom, x, y, map_source)) {
-          if (do_log) { Log.i(TAG, "Back match found at " + i); }
-          back_match = back[i];
-          break;
-        }
+    lru_head = e;
+  }
+
+  static private void remove(Entry e) {
+    cache.remove(e.key);
+    lru_unlink(e);
+    total_bytes -= e.n_bytes;
+    BitmapPool.release(e.b);
+    e.b = null;
+    e.trail.release();
+  }
+
+  // Evict least recently used entries one at a time until the cache fits in
+  // 'limit'.  Unless 'force' is set, stop short of anything drawn in the
+  // current frame, so that a budget smaller than the screen doesn't thrash.
+  static private void evict_to(long limit, boolean force) {
+    while ((total_bytes > limit) && (lru_tail != null)) {
+      if (!force && (lru_tail.cycle == draw_cycle)) {
+        break;
       }
+      if (do_log) { Log.i(TAG, "Evicting tile " + lru_tail.zoom + "/" + lru_tail.x + "/" + lru_tail.y); }
+      remove(lru_tail);
+    }
+  }
+
+  static private void insert(Entry e) {
+    Entry old = cache.get(e.key);
+    if (old != null) {
+      remove(old);
     }
-    if (back_match != null) {
-      check_full();
-      front[next++] = back_match;
-      return back_match;
+    cache.put(e.key, e);
+    lru_push(e);
+    total_bytes += e.n_bytes;
+    evict_to(budget_bytes, false);
+  }
+
+  static private Entry lookup(int zoom, MapSource map_source, int x, int y, int priority) {
+    Entry e = cache.get(make_key(zoom, x, y, map_source));
+    if (e != null) {
+      ++n_hits;
+      return e;
     } else {
-      // Full miss.
-      start_bg_load(zoom, x, y, map_source);
+      ++n_misses;
+      start_bg_load(zoom, x, y, map_source, priority);
       return null;
     }
-
   }
 
-  static private void ripple() {
-    // gravitate entries in 'front' towards the end that's checked first
-    for (int i=1; i<next; i++) {
-      if (front[i-1].cycle > front[i].cycle) {
-        // swap two entries over
-        Entry t = front[i];
-        front[i] = front[i-1];
-        front[i-1] = t;
-      }
+  // Fraction of tile lookups that were satisfied from the cache
+  static float get_hit_rate() {
+    long total = n_hits + n_misses;
+    if (total == 0) {
+      return 0.0f;
+    } else {
+      return (float) n_hits / (float) total;
     }
   }
 
@@ -409,18 +740,67 @@ class TileStore {
 
   static void invalidate() {
     // Get rid of cache when changes occur in tiles - to force reload
-    front = new_cache();
-    next = 0;
-    back = null;
-    // Todo : drop all bar first entry in bg_queue ?
+    while (lru_head != null) {
+      remove(lru_head);
+    }
+    // Anything being decoded now may be out of date
+    ++generation;
+    int cap = pending.capacity();
+    for (int i=0; i<cap; i++) {
+      TilingJob job = pending.value_at(i);
+      if (job != null) {
+        job.cancelled = true;
+        pool.remove(job);
+      }
+    }
+    pending.clear();
   }
 
-  static void sleep_invalidate() {
-    // Get rid of cache to free up memory when activities exit
-    front = new_cache();
-    next = 0;
-    back = null;
-    System.gc();
+  // A new copy of one tile has been written to disk.  If it is on screen,
+  // decode it again and let the result replace the cached entry; the old
+  // bitmap stays visible until then.  Otherwise just drop the entry.  Either
+  // way the rest of the cache is untouched.
+  static void tile_updated(TilePos pos) {
+    long key = pos.key();
+    TilingJob job = pending.get(key);
+    if (job != null) {
+      // May have read the old file : start again, as the tile is still wanted
+      job.superseded = true;
+      job.cancelled = true;
+      pool.remove(job);
+      pending.remove(key);
+      start_bg_load(pos.zoom, pos.x, pos.y, pos.map_source, job.priority);
+    }
+    Entry e = cache.get(key);
+    if (e != null) {
+      if (e.cycle == draw_cycle) {
+        start_bg_load(pos.zoom, pos.x, pos.y, pos.map_source, 0);
+      } else {
+        remove(e);
+      }
+    }
+  }
+
+  // The trail has changed other than by having points added (e.g. it has been
+  // cleared).  Throw away the trail layers but keep the decoded tiles : the
+  // layers get rendered again as the tiles are next drawn.
+  static void invalidate_trail() {
+    ++trail_generation;
+    for (Entry e = lru_head; e != null; e = e.lru_next) {
+      e.reset_trail();
+    }
+  }
+
+  // Shrink the cache in response to memory pressure, down to 'keep_fraction'
+  // of the budget.  The least recently used tiles go first.
+  static void trim(float keep_fraction) {
+    evict_to((long)(keep_fraction * (float) budget_bytes), true);
+    // Under pressure, spare bitmaps are just dead weight
+    BitmapPool.clear();
+    if (keep_fraction == 0.0f) {
+      TilePresence.clear();
+    }
+    if (do_log) { Log.i(TAG, "Trimmed tile cache to " + total_bytes + " bytes"); }
   }
 
   static void draw(Canvas c, int w, int h, int zoom, MapSource map_source, Merc28 midpoint) {
@@ -441,12 +821,7 @@ class TileStore {
     ox = (tx << bm_log_size) - px;
     oy = (ty << bm_log_size) - py;
 
-    // These are used to size the new 'front' cache when it gets re-allocated
-    last_w = w;
-    last_h = h;
-
-    // This is used in maintaining the cache so that the most recently used
-    // entries are the ones hit first in the search.
+    // Entries touched in this cycle are protected from eviction
     draw_cycle++;
 
     int i, j;
@@ -456,44 +831,106 @@ class TileStore {
       j = 0;
       while (oy + (j<<bm_log_size) < h) {
         int yy = oy + (j<<bm_log_size);
-        Entry e = lookup(zoom, map_source, tx+i, ty+j);
-        Bitmap bm;
+        // Squared distance from the middle of the tile to the middle of the canvas
+        int dx = xx + (bm_size>>1) - (w>>1);
+        int dy = yy + (bm_size>>1) - (h>>1);
+        Entry e = lookup(zoom, map_source, tx+i, ty+j, dx*dx + dy*dy);
+        Rect dest = new Rect(xx, yy, xx+bm_size, yy+bm_size);
         if (e != null) {
           e.add_recent_trail();
           e.touch();
-          bm = e.getBitmap();
+          c.drawBitmap(e.getBitmap(), null, dest, null);
         } else {
-          bm = loading_bitmap;
+          // Until it's decoded, stretch the part of a lower zoom tile that
+          // covers it, if one is cached
+          Entry a = find_ancestor(zoom, map_source, tx+i, ty+j);
+          if (a != null) {
+            a.touch();
+            c.drawBitmap(a.getBitmap(), ancestor_src, dest, scale_paint);
+          } else {
+            c.drawBitmap(loading_bitmap, null, dest, null);
+          }
+        }
+        if (e != null) {
+          if (e.trail.bm != null) {
+            c.drawBitmap(e.trail.bm, null, dest, null);
+          }
+          if (e.is_fresh) {
+            render_highlight_border(c, xx, yy);
+          }
         }
-        Rect dest = new Rect(xx, yy, xx+bm_size, yy+bm_size);
-        c.drawBitmap(bm, null, dest, null);
         j++;
       }
       i++;
     }
 
-    ripple();
+    cancel_unwanted();
 
+    if (do_log) { Log.i(TAG, "Cache holds " + cache.size() + " tiles, " + total_bytes + " bytes, hit rate " + get_hit_rate() + ", bitmaps " + BitmapPool.get_stats()); }
   }
 
   static void trigger_fetch(Context context) {
     LinkedList<TilePos> targets;
     targets = new LinkedList<TilePos> ();
-    for (int i=0; i<next; i++) {
-      if (front[i].is_dummy) {
-        targets.add(new TilePos(front[i]));
+    int cap = cache.capacity();
+    for (int i=0; i<cap; i++) {
+      Entry e = cache.value_at(i);
+      if ((e != null) && e.is_dummy) {
+        targets.add(new TilePos(e));
       }
     }
-    if (back != null) {
-      for (int i=0; i<back.length; i++) {
-        if (back[i].is_dummy) {
-          targets.add(new TilePos(back[i]));
+
+    Downloader.start_multiple_fetch(targets, context);
+    targets = null;
+  }
+
+  static boolean is_low_memory() {
+    return tile_config == Bitmap.Config.RGB_565;
+  }
+
+  // Switch between 16 and 32 bit tiles.  Everything cached has to be decoded
+  // again in the new format.
+  static void set_low_memory(boolean low) {
+    Bitmap.Config config = low ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    if (config != tile_config) {
+      tile_config = config;
+      invalidate();
+      BitmapPool.clear();
+      make_loading_bitmap();
+      save_colour_mode();
+    }
+  }
+
+  // Same format as the map's prefs files : "1" for 16 bit tiles, "0" for 32
+  static private void restore_colour_mode() {
+    File file = new File("/sdcard/LogMyGsm/prefs/" + COLOUR_PREFS_FILE);
+    if (file.exists()) {
+      try {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        String line = br.readLine();
+        br.close();
+        if (line != null) {
+          tile_config = (Integer.parseInt(line) != 0) ?
+            Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
         }
+      } catch (IOException e) {
+      } catch (NumberFormatException n) {
       }
     }
+  }
 
-    Downloader.start_multiple_fetch(targets, context);
-    targets = null;
+  static private void save_colour_mode() {
+    File dir = new File("/sdcard/LogMyGsm/prefs");
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+    File file = new File(dir, COLOUR_PREFS_FILE);
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+      bw.write(String.format("%d\n", is_low_memory() ? 1 : 0));
+      bw.close();
+    } catch (IOException e) {
+    }
   }
 
   static long get_epoch() {
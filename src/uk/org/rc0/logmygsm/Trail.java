@@ -25,33 +25,32 @@
 
 package uk.org.rc0.logmygsm;
 
-import android.graphics.Canvas;
 import android.util.Log;
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.ObjectInputStream;
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.IntBuffer;
 
 // Meant to be instantiated as a member in the service
 class Trail {
 
   private Logger mLogger;
 
-  private ArrayList<Merc28> recent;
-  private Merc28 last_point;
-  private int n_old;
-  private int[] x_old;
-  private int[] y_old;
+  // The whole trail, oldest first, in arrays that grow by doubling.  Points
+  // below n_points are never changed, and growing copies into new arrays,
+  // so a reader can keep using the arrays and count it was handed.
+  private int n_points;
+  private int[] x_all;
+  private int[] y_all;
+  static final private int INITIAL_CAPACITY = 1024;
+  // Spatial index over the points
+  private TrailIndex mIndex;
+  // Thinned points for low zoom levels
+  private TrailPyramid mPyramid;
   private History mHistory;
+  // The trail on disk
+  private TrailJournal mJournal;
 
   static final int splot_gap = 10;
   static final float splot_radius = 5.0f;
@@ -62,15 +61,24 @@ class Trail {
     int n;
     int [] x;
     int [] y;
+    // If this is a subset of the trail, the position of each point in the
+    // whole trail; otherwise null.
+    int [] index;
+    // Length of the whole trail when this was taken
+    int n_total;
 
     PointArray () {
       n = 0;
       x = null;
       y = null;
+      index = null;
+      n_total = 0;
     }
 
     PointArray (int nn, int [] xx, int [] yy) {
       n = nn;
+      index = null;
+      n_total = n_points;
       if (n > 0) {
         x = xx;
         y = yy;
@@ -80,21 +88,23 @@ class Trail {
       }
     }
 
-    PointArray (ArrayList<Merc28> zz) {
-      n = zz.size();
-      if (n > 0) {
-        x = new int[n];
-        y = new int[n];
-        for (int i = 0; i < n; i++) {
-          x[i] = zz.get(i).X;
-          y[i] = zz.get(i).Y;
-        }
-      } else {
-        x = null;
-        y = null;
+    PointArray (int [] idx, int [] xx, int [] yy) {
+      n = idx.length;
+      index = idx;
+      n_total = n_points;
+      x = new int[n];
+      y = new int[n];
+      for (int i = 0; i < n; i++) {
+        x[i] = xx[idx[i]];
+        y[i] = yy[idx[i]];
       }
     }
 
+    // True if point i doesn't follow on directly from point i-1 in the trail
+    boolean is_break(int i) {
+      return (i == 0) || ((index != null) && (index[i] != index[i-1] + 1));
+    }
+
   }
 
   class History {
@@ -139,120 +149,129 @@ class Trail {
     restore_state_from_file();
   }
 
-  private void init() {
-    recent = new ArrayList<Merc28> ();
-    last_point = null;
-    n_old = 0;
-    x_old = null;
-    y_old = null;
+  private synchronized void init() {
+    n_points = 0;
+    x_all = new int[INITIAL_CAPACITY];
+    y_all = new int[INITIAL_CAPACITY];
+    mIndex = new TrailIndex();
+    mPyramid = new TrailPyramid();
   }
 
   void clear() {
     init();
+    mJournal.clear();
   }
 
-  // Move to subclass of service
+  // Points are journalled as they are added, so this only has to write out
+  // the last few.
   void save_state_to_file() {
-    gather();
+    mJournal.flush();
+    mJournal.close();
+  }
 
+  void restore_state_from_file() {
     File dir = new File("/sdcard/LogMyGsm/prefs");
-    if (!dir.exists()) {
-      dir.mkdirs();
-    }
-    File file = new File(dir, "trail.dat");
-    try {
-      ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
-      oos.writeInt(n_old);
-      oos.writeObject(x_old);
-      oos.writeObject(y_old);
-      oos.close();
-    } catch (Exception e) {
+    mJournal = new TrailJournal(new File(dir, "trail.jnl"));
+    File old_file = new File(dir, "trail.dat");
+    init();
+    // The old file is only removed once migration has finished
+    if (old_file.exists()) {
+      migrate_old_file(old_file);
+    } else {
+      IntBuffer records = mJournal.load();
+      while (records.remaining() >= 2) {
+        append(records.get(), records.get());
+      }
     }
+
+    mLogger.announce(String.format("Loaded %d trail points", n_points));
   }
 
-  void restore_state_from_file() {
-    File file = new File("/sdcard/LogMyGsm/prefs/trail.dat");
+  // Copy the trail from the serialized file written by older versions into
+  // the journal, then remove it.  An unreadable file is dropped.
+  private void migrate_old_file(File file) {
     boolean failed = false;
-    init();
-    if (file.exists()) {
-      try {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-        n_old = ois.readInt();
-        x_old = (int []) ois.readObject();
-        y_old = (int []) ois.readObject();
-        ois.close();
-      } catch (IOException e) {
-        failed = true;
-      } catch (ClassNotFoundException e) {
-        failed = true;
-      }
+    int n_file = 0;
+    int [] x_file = null;
+    int [] y_file = null;
+    mJournal.clear();
+    try {
+      ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+      n_file = ois.readInt();
+      x_file = (int []) ois.readObject();
+      y_file = (int []) ois.readObject();
+      ois.close();
+    } catch (IOException e) {
+      failed = true;
+    } catch (ClassNotFoundException e) {
+      failed = true;
     }
-    if (failed) {
-      init();
+    if (!failed) {
+      for (int i = 0; i < n_file; i++) {
+        append(x_file[i], y_file[i]);
+        mJournal.add(x_file[i], y_file[i]);
+      }
+      mJournal.flush();
     }
-
-    mLogger.announce(String.format("Loaded %d trail points", n_old));
+    file.delete();
   }
 
   // Skip points that are too close together to ever be visible on the map display
   void add_point(Merc28 p) {
     mHistory.add(p);
     boolean do_add = true;
-    if (last_point != null) {
+    if (n_points > 0) {
       // 4 is (28 - (16+8)), i.e. the pixel size at zoom level = 16.
       // 3 is (28 - (17+8)), i.e. the pixel size at zoom level = 17.
       // Also, round it.
-      int sx = (((p.X - last_point.X) >> 2) + 1) >> 1;
-      int sy = (((p.Y - last_point.Y) >> 2) + 1) >> 1;
+      int sx = (((p.X - x_all[n_points-1]) >> 2) + 1) >> 1;
+      int sy = (((p.Y - y_all[n_points-1]) >> 2) + 1) >> 1;
       int manhattan = Math.abs(sx) + Math.abs(sy);
       if (manhattan < splot_gap) {
         do_add = false;
       }
     }
     if (do_add) {
-      recent.add(new Merc28(p));
-      last_point = new Merc28(p);
+      append(p.X, p.Y);
+      mJournal.add(p.X, p.Y);
     }
   }
 
   // Internal
 
-  private void gather() {
-    // accumulate the 'recent' history onto the 'old' arrays
-    int n_recent = recent.size();
-    if (n_recent > 0) {
-
-      // TODO : if n_old is too large, do some data reduction here (either
-      // thin out the old stuff, or toss the earlier half of it)
-      int n_new = n_old + n_recent;
+  private synchronized void append(int x, int y) {
+    if (n_points == x_all.length) {
+      int [] x_new = new int[n_points << 1];
+      int [] y_new = new int[n_points << 1];
+      System.arraycopy(x_all, 0, x_new, 0, n_points);
+      System.arraycopy(y_all, 0, y_new, 0, n_points);
+      x_all = x_new;
+      y_all = y_new;
+    }
+    x_all[n_points] = x;
+    y_all[n_points] = y;
+    mIndex.add(n_points, x, y);
+    mPyramid.add(x, y);
+    ++n_points;
+  }
 
-      int [] x_new = new int[n_new];
-      int [] y_new = new int[n_new];
-      if (n_old > 0) {
-        System.arraycopy(x_old, 0, x_new, 0, n_old);
-        System.arraycopy(y_old, 0, y_new, 0, n_old);
-      }
-      for (int i = 0; i < n_recent; i++) {
-        x_new[i + n_old] = recent.get(i).X;
-        y_new[i + n_old] = recent.get(i).Y;
-      }
+  // A view of the whole trail so far, sharing the storage
+  synchronized PointArray get_historical() {
+    return new PointArray(n_points, x_all, y_all);
+  }
 
-      n_old = n_new;
-      x_old = x_new;
-      y_old = y_new;
-      recent = new ArrayList<Merc28> ();
-      // leave last_point alone
+  // The historical points needed to render the box [x0,x1) x [y0,y1) at
+  // the given zoom.  At low zoom these are the pre-thinned points, otherwise
+  // just the points in (or close to) the box.
+  synchronized PointArray get_historical_near(int zoom, int x0, int y0, int x1, int y1) {
+    if (TrailPyramid.covers(zoom)) {
+      TrailPyramid.Level level = mPyramid.get_level(zoom);
+      return new PointArray(level.n, level.x, level.y);
     } else {
-      // leave 'old' arrays as they were
+      return new PointArray(mIndex.query(x0, y0, x1, y1), x_all, y_all);
     }
   }
 
-  // If this is being requested, it's because the tile cache is being rebuilt, so it's a good time
-  // to accumulate the recent points onto the historical list
-  PointArray get_historical() {
-    return new PointArray(n_old, x_old, y_old);
-  }
-
   Merc28 get_estimated_position() {
     return mHistory.estimated_position();
   }
@@ -267,19 +286,26 @@ class Trail {
     int next;
     int parity;
     Upto() {
+      this(0);
+    }
+    // Start after the first 'n' points, which have been drawn already
+    Upto(int n) {
       lx = -256;
       ly = -256;
-      next = 0;
+      next = n;
       parity = 0;
     }
   }
 
-  void draw_recent_trail(Canvas c, int xnw, int ynw, int pixel_shift, Upto upto) {
-    int n = recent.size();
+  // Draw the points that have been added since 'upto' was last updated.
+  // Called on the same thread as add_point(), so no locking is needed.
+  void draw_recent_trail(TileStore.TrailLayer layer, int xnw, int ynw, int pixel_shift, Upto upto) {
+    int n = n_points;
+    int [] xx = x_all;
+    int [] yy = y_all;
     for (int i=upto.next; i<n; i++) {
-      Merc28 p = recent.get(i);
-      int sx = (p.X - xnw) >> pixel_shift;
-      int sy = (p.Y - ynw) >> pixel_shift;
+      int sx = (xx[i] - xnw) >> pixel_shift;
+      int sy = (yy[i] - ynw) >> pixel_shift;
       boolean do_add = true;
       int manhattan = Math.abs(sx - upto.lx) + Math.abs(sy - upto.ly);
       if (manhattan < splot_gap) {
@@ -289,7 +315,7 @@ class Trail {
         // Don't even bother invoking the library if we're off-screen.
         // // Loose bounds to allow for 
         if ((sx >= MIN_CENTRE) && (sy >= MIN_CENTRE) && (sx < MAX_CENTRE) && (sy < MAX_CENTRE)) {
-          TileStore.render_dot(c, sx, sy, upto.parity);
+          TileStore.render_dot(layer.get_canvas(), sx, sy, upto.parity);
           upto.parity ^= 1;
           upto.lx = sx;
           upto.ly = sy;
@@ -300,8 +326,8 @@ class Trail {
     return;
   }
 
-  int n_recent () {
-    return recent.size();
+  int n_points () {
+    return n_points;
   }
 }
 
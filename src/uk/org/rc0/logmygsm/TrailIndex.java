@@ -0,0 +1,149 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+import java.util.Arrays;
+
+// Grid index over a list of trail points, so that rendering one map tile
+// only has to visit the points near that tile.
+//
+// The grid cells are the size of a zoom 13 tile.  Each cell holds the
+// indices (into the caller's point arrays) of the points that fall in it,
+// in the order they were added.
+
+class TrailIndex {
+
+  static final int CELL_SHIFT = Merc28.shift - 13;
+
+  private class Cell {
+    int [] idx;
+    int n;
+
+    Cell() {
+      idx = new int[8];
+      n = 0;
+    }
+
+    void add(int i) {
+      if (n == idx.length) {
+        int [] bigger = new int[n << 1];
+        System.arraycopy(idx, 0, bigger, 0, n);
+        idx = bigger;
+      }
+      idx[n++] = i;
+    }
+  }
+
+  private LongMap<Cell> cells;
+  private int n_points;
+
+  TrailIndex() {
+    clear();
+  }
+
+  void clear() {
+    cells = new LongMap<Cell> ();
+    n_points = 0;
+  }
+
+  static private long cell_key(int cx, int cy) {
+    return ((long) cx << 32) | ((long) cy & 0xffffffffL);
+  }
+
+  // Points must be added in increasing order of i
+  void add(int i, int x, int y) {
+    long k = cell_key(x >> CELL_SHIFT, y >> CELL_SHIFT);
+    Cell c = cells.get(k);
+    if (c == null) {
+      c = new Cell();
+      cells.put(k, c);
+    }
+    c.add(i);
+    ++n_points;
+  }
+
+  int size() {
+    return n_points;
+  }
+
+  // Return, in increasing order, the indices of all points in the cells
+  // overlapping the box [x0,x1) x [y0,y1).  This may include some points
+  // just outside the box, but never misses one inside it.
+  int [] query(int x0, int y0, int x1, int y1) {
+    int cx0 = x0 >> CELL_SHIFT;
+    int cy0 = y0 >> CELL_SHIFT;
+    int cx1 = (x1 - 1) >> CELL_SHIFT;
+    int cy1 = (y1 - 1) >> CELL_SHIFT;
+    long n_box = (long)(cx1 - cx0 + 1) * (long)(cy1 - cy0 + 1);
+
+    int total = 0;
+    Cell [] hits;
+    int n_hits = 0;
+    if (n_box <= cells.size()) {
+      // Small box : probe each cell in it
+      hits = new Cell[(int) n_box];
+      for (int cx = cx0; cx <= cx1; cx++) {
+        for (int cy = cy0; cy <= cy1; cy++) {
+          Cell c = cells.get(cell_key(cx, cy));
+          if (c != null) {
+            hits[n_hits++] = c;
+            total += c.n;
+          }
+        }
+      }
+    } else {
+      // Box covers more cells than are occupied : walk the occupied ones
+      hits = new Cell[cells.size()];
+      int cap = cells.capacity();
+      for (int i=0; i<cap; i++) {
+        Cell c = cells.value_at(i);
+        if (c != null) {
+          long k = cells.key_at(i);
+          int cx = (int)(k >> 32);
+          int cy = (int) k;
+          if ((cx >= cx0) && (cx <= cx1) && (cy >= cy0) && (cy <= cy1)) {
+            hits[n_hits++] = c;
+            total += c.n;
+          }
+        }
+      }
+    }
+
+    int [] result = new int[total];
+    int n = 0;
+    for (int i=0; i<n_hits; i++) {
+      System.arraycopy(hits[i].idx, 0, result, n, hits[i].n);
+      n += hits[i].n;
+    }
+    if (n_hits > 1) {
+      Arrays.sort(result);
+    }
+    return result;
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,191 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Append-only file holding the trail as fixed-width records, so that the
+// points logged since the service started survive the process being killed.
+//
+// Layout : an 8 byte header (magic, version) followed by one 8 byte record
+// (X, Y as big-endian ints in Merc28 space) per trail point.  A record torn
+// by a crash is dropped when the file is next opened.
+
+class TrailJournal {
+
+  static final private int MAGIC = 0x4c4d4754; // "LMGT"
+  static final private int VERSION = 1;
+  static final private int HEADER_BYTES = 8;
+  static final private int RECORD_BYTES = 8;
+
+  // Points held back before a write.  At most this many are lost if the
+  // process dies.
+  static final private int BATCH = 16;
+
+  static final private String TAG = "TrailJournal";
+
+  private File file;
+  private RandomAccessFile raf;
+  private ByteBuffer pending;
+  private int n_pending;
+  private int n_records;
+
+  TrailJournal(File _file) {
+    file = _file;
+    raf = null;
+    pending = ByteBuffer.allocate(BATCH * RECORD_BYTES);
+    n_pending = 0;
+    n_records = 0;
+  }
+
+  // Map the file and return a view of its records as (x,y) pairs.  Also
+  // leaves the file open for appending after the last whole record.
+  IntBuffer load() {
+    IntBuffer result = IntBuffer.allocate(0);
+    n_records = 0;
+    try {
+      close();
+      open_file();
+      long length = raf.length();
+      if (length >= HEADER_BYTES) {
+        raf.seek(0);
+        if ((raf.readInt() == MAGIC) && (raf.readInt() == VERSION)) {
+          n_records = (int)((length - HEADER_BYTES) / RECORD_BYTES);
+        } else {
+          Log.w(TAG, "Unrecognized journal header, starting afresh");
+        }
+      }
+      if (n_records > 0) {
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+            HEADER_BYTES, (long) n_records * RECORD_BYTES);
+        result = mapped.asIntBuffer();
+      }
+      truncate();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not load journal : " + e.getMessage());
+      n_records = 0;
+    }
+    return result;
+  }
+
+  void add(int x, int y) {
+    pending.putInt(x);
+    pending.putInt(y);
+    ++n_pending;
+    if (n_pending == BATCH) {
+      flush();
+    }
+  }
+
+  // Write out any points that are held back.  Cheap when there are none.
+  void flush() {
+    if (n_pending == 0) {
+      return;
+    }
+    try {
+      open();
+      raf.write(pending.array(), 0, n_pending * RECORD_BYTES);
+      n_records += n_pending;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write journal : " + e.getMessage());
+      close();
+    }
+    pending.clear();
+    n_pending = 0;
+  }
+
+  // Forget every point, both on disk and held back.  A closed journal is
+  // left closed.
+  void clear() {
+    pending.clear();
+    n_pending = 0;
+    n_records = 0;
+    boolean was_open = (raf != null);
+    try {
+      if (raf == null) {
+        open();
+      } else {
+        truncate();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not clear journal : " + e.getMessage());
+    }
+    if (!was_open) {
+      close();
+    }
+  }
+
+  void close() {
+    if (raf != null) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+      }
+      raf = null;
+    }
+  }
+
+  // Internal
+
+  // Open for appending.  On reopening after close() (including after a
+  // failed write), the file is cut back to the records known to be whole,
+  // so the next batch goes after them rather than over the header.
+  private void open() throws IOException {
+    if (raf == null) {
+      open_file();
+      truncate();
+    }
+  }
+
+  private void open_file() throws IOException {
+    File dir = file.getParentFile();
+    if ((dir != null) && !dir.exists()) {
+      dir.mkdirs();
+    }
+    raf = new RandomAccessFile(file, "rw");
+  }
+
+  // Cut the file back to the header and the n_records whole records, and
+  // position for the next append.
+  private void truncate() throws IOException {
+    raf.setLength(HEADER_BYTES + (long) n_records * RECORD_BYTES);
+    raf.seek(0);
+    raf.writeInt(MAGIC);
+    raf.writeInt(VERSION);
+    raf.seek(raf.length());
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,114 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Thinned copies of the trail for the low zoom levels, where one tile
+// covers so much ground that nearly all of the points would be dropped by
+// the splot gap test anyway.
+//
+// The thinning at each level is the same test that the renderer applies
+// (Manhattan distance in screen pixels from the last splot drawn), and
+// pixel positions at a given zoom don't depend on which tile they're drawn
+// on, so rendering a level gives the same splots as rendering every point.
+
+class TrailPyramid {
+
+  static final int MIN_ZOOM = 5;
+  static final int MAX_ZOOM = 10;
+
+  class Level {
+    int n;
+    int [] x;
+    int [] y;
+    private int pixel_shift;
+    private int last_px;
+    private int last_py;
+
+    Level(int zoom) {
+      n = 0;
+      x = new int[64];
+      y = new int[64];
+      pixel_shift = Merc28.shift - (zoom + 8);
+    }
+
+    void add(int xx, int yy) {
+      int px = xx >> pixel_shift;
+      int py = yy >> pixel_shift;
+      if (n > 0) {
+        int manhattan = Math.abs(px - last_px) + Math.abs(py - last_py);
+        if (manhattan < Trail.splot_gap) {
+          return;
+        }
+      }
+      if (n == x.length) {
+        // Grow into new arrays, so that readers holding the old ones can
+        // carry on using their first n entries
+        int [] new_x = new int[n << 1];
+        int [] new_y = new int[n << 1];
+        System.arraycopy(x, 0, new_x, 0, n);
+        System.arraycopy(y, 0, new_y, 0, n);
+        x = new_x;
+        y = new_y;
+      }
+      x[n] = xx;
+      y[n] = yy;
+      ++n;
+      last_px = px;
+      last_py = py;
+    }
+  }
+
+  private Level [] levels;
+
+  TrailPyramid() {
+    clear();
+  }
+
+  void clear() {
+    levels = new Level[MAX_ZOOM + 1 - MIN_ZOOM];
+    for (int i=0; i<levels.length; i++) {
+      levels[i] = new Level(MIN_ZOOM + i);
+    }
+  }
+
+  // Points must be added in trail order
+  void add(int x, int y) {
+    for (int i=0; i<levels.length; i++) {
+      levels[i].add(x, y);
+    }
+  }
+
+  static boolean covers(int zoom) {
+    return (zoom >= MIN_ZOOM) && (zoom <= MAX_ZOOM);
+  }
+
+  Level get_level(int zoom) {
+    return levels[zoom - MIN_ZOOM];
+  }
+
+}
+
+// vim:et:sw=2:sts=2
@@ -0,0 +1,149 @@
+// Copyright (c) 2012, Richard P. Curnow
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//     * Redistributions of source code must retain the above copyright
+//       notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above copyright
+//       notice, this list of conditions and the following disclaimer in the
+//       documentation and/or other materials provided with the distribution.
+//     * Neither the name of the <organization> nor the
+//       names of its contributors may be used to endorse or promote products
+//       derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package uk.org.rc0.logmygsm;
+
+// Checks FixFormatter.format() against the String.format call it replaces,
+// and format_bytes() against that string's getBytes(), on random fixes mixed
+// with awkward values (signed zeros, NaN, infinities, huge numbers, values at
+// rounding ties, int limits, null MCC/MNC).  Stops at the first difference.  Not part of the app; it doesn't need Android.  From the
+// top of the tree :
+//   javac -d out src/uk/org/rc0/logmygsm/FixFormatter.java \
+//       tools/uk/org/rc0/logmygsm/FixFormatterCheck.java
+//   java -cp out uk.org.rc0.logmygsm.FixFormatterCheck [<records> [<seed>]]
+
+import java.util.Arrays;
+import java.util.Random;
+
+class FixFormatterCheck {
+
+  static final private String FORMAT = "%12.7f %12.7f %3d %c %c %10d %10d %3d %s %.1f %d\n";
+
+  static final private double [] EDGE_DOUBLES = {
+    0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+    1.0e300, -1.0e300, Double.MAX_VALUE, -Double.MAX_VALUE,
+    Double.MIN_VALUE, -Double.MIN_VALUE, 1.0e15, -1.0e15, 1.0e8, -1.0e8,
+    0.05, -0.05, 0.25, 0.00000005, -0.00000005, 0.00000015, 51.33838215,
+    -2.98149065, 76.35, 99.95, 179.99999995, -179.99999995, 90.0, -90.0
+  };
+
+  static final private int [] EDGE_INTS = {
+    0, -1, 1, 99, 100, 999, 1000, -99, -100, -101, 65535, 65536,
+    Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1
+  };
+
+  static final private String [] EDGE_MCC_MNC = {
+    null, "", "23410", "310260", "00101", "?"
+  };
+
+  private Random rnd;
+
+  private FixFormatterCheck(long seed) {
+    rnd = new Random(seed);
+  }
+
+  public static void main(String [] args) {
+    int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.currentTimeMillis();
+    FixFormatterCheck check = new FixFormatterCheck(seed);
+    FixFormatter formatter = new FixFormatter();
+    for (int i = 0; i < n; i++) {
+      double lat = check.coordinate();
+      double lon = check.coordinate();
+      int acc = check.integer();
+      char state = check.character();
+      char network_type = check.character();
+      int cid = check.integer();
+      int lac = check.integer();
+      int dBm = check.integer();
+      String mcc_mnc = check.mcc_mnc();
+      double alt = check.altitude();
+      int time = check.integer();
+      String want = String.format(FORMAT, lat, lon, acc, state, network_type,
+          cid, lac, dBm, mcc_mnc, alt, time);
+      String got = formatter.format(lat, lon, acc, state, network_type,
+          cid, lac, dBm, mcc_mnc, alt, time);
+      byte [] got_bytes = formatter.format_bytes(lat, lon, acc, state, network_type,
+          cid, lac, dBm, mcc_mnc, alt, time);
+      if (!got.equals(want) || !Arrays.equals(got_bytes, want.getBytes())) {
+        System.err.println("Mismatch at record " + i + " (seed " + seed + ") :");
+        System.err.println("  lat " + lat + " lon " + lon + " alt " + alt);
+        System.err.print("  String.format : " + want);
+        System.err.print("  FixFormatter  : " + got);
+        System.err.print("  format_bytes  : " + new String(got_bytes));
+        System.exit(1);
+      }
+    }
+    System.out.println(n + " records match (seed " + seed + ")");
+  }
+
+  // Internal
+
+  private double coordinate() {
+    switch (rnd.nextInt(8)) {
+      case 0:  return EDGE_DOUBLES[rnd.nextInt(EDGE_DOUBLES.length)];
+      // Exactly halfway between two 7 decimal place outputs, or nearly
+      case 1:  return (rnd.nextInt(360000000) - 180000000 + 0.5) * 1.0e-7;
+      case 2:  return (rnd.nextInt(360000000) - 180000000 + 0.5) * 1.0e-7 + (rnd.nextDouble() - 0.5) * 1.0e-15;
+      case 3:  return (rnd.nextDouble() - 0.5) * 2.0e10;
+      default: return (rnd.nextDouble() - 0.5) * 360.0;
+    }
+  }
+
+  private double altitude() {
+    switch (rnd.nextInt(6)) {
+      case 0:  return EDGE_DOUBLES[rnd.nextInt(EDGE_DOUBLES.length)];
+      case 1:  return (rnd.nextInt(200000) - 100000 + 0.5) * 0.1;
+      case 2:  return Math.round((rnd.nextDouble() - 0.1) * 20000.0) / 10.0;
+      default: return (rnd.nextDouble() - 0.1) * 2000.0;
+    }
+  }
+
+  private int integer() {
+    switch (rnd.nextInt(4)) {
+      case 0:  return EDGE_INTS[rnd.nextInt(EDGE_INTS.length)];
+      case 1:  return rnd.nextInt();
+      default: return rnd.nextInt(2001) - 1000;
+    }
+  }
+
+  private char character() {
+    switch (rnd.nextInt(4)) {
+      case 0:  return (char) (0x20 + rnd.nextInt(0x5f));
+      case 1:  return (char) (0xa0 + rnd.nextInt(0x2000));
+      default: return "AEXO?GUHE".charAt(rnd.nextInt(9));
+    }
+  }
+
+  private String mcc_mnc() {
+    if (rnd.nextInt(3) == 0) {
+      return EDGE_MCC_MNC[rnd.nextInt(EDGE_MCC_MNC.length)];
+    }
+    return Integer.toString(10000 + rnd.nextInt(990000));
+  }
+
+}
+
+// vim:et:sw=2:sts=2